@@ -6,12 +6,19 @@ import nachos.security.*;
 import nachos.threads.KThread;
 import nachos.threads.Semaphore;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Vector;
 import java.util.LinkedList;
 import java.util.Iterator;
 
 /**
  * A bank of elevators.
+ *
+ * <p>
+ * Riders waiting outside the elevators are indexed by floor, and riders
+ * inside by elevator, so a rider event is only offered to the riders it
+ * concerns. One <tt>RiderEvent</tt> is shared by all of them.
  */
 public final class ElevatorBank implements Runnable {
 	/** Indicates an elevator intends to move down. */
@@ -107,6 +114,12 @@ public final class ElevatorBank implements Runnable {
 		riders = new RiderState[numRiders];
 		ridersVector.toArray(riders);
 
+		ridersOnFloor = new ArrayList<ArrayList<RiderState>>(numFloors);
+		for (int floor = 0; floor < numFloors; floor++)
+			ridersOnFloor.add(new ArrayList<RiderState>());
+		for (int i = 0; i < numRiders; i++)
+			addToFloor(riders[i]);
+
 		if (enableGui) {
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
@@ -156,14 +169,41 @@ public final class ElevatorBank implements Runnable {
 		}
 
 		RiderEvent e = new RiderEvent(event, floor, elevator, direction);
-		for (int i = 0; i < numRiders; i++) {
-			RiderState rider = riders[i];
-			if ((rider.inElevator && rider.elevator == e.elevator)
-					|| (!rider.inElevator && rider.floor == e.floor)) {
-				rider.events.add(e);
-				rider.schedule(1);
-			}
+
+		if (elevator != -1) {
+			Vector<RiderState> inside = elevators[elevator].riders;
+			for (int i = 0; i < inside.size(); i++)
+				inside.elementAt(i).post(e);
 		}
+
+		if (floor != -1) {
+			ArrayList<RiderState> outside = ridersOnFloor.get(floor);
+			for (int i = 0; i < outside.size(); i++)
+				outside.get(i).post(e);
+		}
+	}
+
+	/**
+	 * Add a rider outside the elevators to the index of its floor.
+	 */
+	private void addToFloor(RiderState rider) {
+		ArrayList<RiderState> outside = ridersOnFloor.get(rider.floor);
+		rider.floorSlot = outside.size();
+		outside.add(rider);
+	}
+
+	/**
+	 * Remove a rider from the index of its floor, moving the last rider on
+	 * the floor into its slot.
+	 */
+	private void removeFromFloor(RiderState rider) {
+		ArrayList<RiderState> outside = ridersOnFloor.get(rider.floor);
+		RiderState last = outside.remove(outside.size() - 1);
+		if (last != rider) {
+			outside.set(rider.floorSlot, last);
+			last.floorSlot = rider.floorSlot;
+		}
+		rider.floorSlot = -1;
 	}
 
 	private class ElevatorManager implements ElevatorControls {
@@ -536,6 +576,8 @@ public final class ElevatorBank implements Runnable {
 			if (!elevators[elevator].enter(this, floor))
 				return false;
 
+			removeFromFloor(this);
+
 			if (gui != null)
 				gui.enterElevator(floor, elevator);
 
@@ -567,6 +609,7 @@ public final class ElevatorBank implements Runnable {
 				return false;
 
 			inElevator = false;
+			addToFloor(this);
 			floors.add(new Integer(floor));
 
 			if (gui != null)
@@ -585,6 +628,10 @@ public final class ElevatorBank implements Runnable {
 
 			Lib.assertTrue(KThread.currentThread() == thread);
 
+			// a finished rider receives no more events
+			if (!inElevator)
+				removeFromFloor(this);
+
 			done.V();
 			KThread.finish();
 		}
@@ -593,6 +640,18 @@ public final class ElevatorBank implements Runnable {
 			privilege.interrupt.schedule(when, "rider", interrupt);
 		}
 
+		/**
+		 * Queue an event for this rider. The rider drains its queue on each
+		 * interrupt, so an interrupt is only needed when the queue was
+		 * empty.
+		 */
+		void post(RiderEvent e) {
+			boolean wasEmpty = events.isEmpty();
+			events.add(e);
+			if (wasEmpty)
+				schedule(1);
+		}
+
 		void interrupt() {
 			if (!finished && !events.isEmpty() && handler != null)
 				handler.run();
@@ -622,7 +681,10 @@ public final class ElevatorBank implements Runnable {
 
 		Runnable interrupt, handler = null;
 
-		LinkedList<RiderEvent> events = new LinkedList<RiderEvent>();
+		ArrayDeque<RiderEvent> events = new ArrayDeque<RiderEvent>();
+
+		/** This rider's index in its floor's list, or -1 if not on one. */
+		int floorSlot = -1;
 
 		Vector<Integer> floors = new Vector<Integer>();
 
@@ -643,6 +705,9 @@ public final class ElevatorBank implements Runnable {
 
 	private RiderState[] riders;
 
+	/** The riders outside the elevators on each floor. */
+	private ArrayList<ArrayList<RiderState>> ridersOnFloor;
+
 	private boolean simulationStarted, enableGui;
 
 	private Privilege privilege;
@@ -17,12 +17,26 @@ import java.awt.Rectangle;
 import java.awt.Graphics;
 import java.awt.Color;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * A graphical visualization for the <tt>ElevatorBank</tt> class.
+ *
+ * <p>
+ * The simulation never waits on the display. Each update only records the
+ * new state of a floor or shaft and marks it changed. A render timer on the
+ * AWT event thread repaints the changed parts at a fixed frame rate, so any
+ * number of updates between two frames cost one repaint.
  */
 public final class ElevatorGui extends Frame {
 	private final static int w = 90, h = 75;
 
+	/** Milliseconds between frames. */
+	private final static int frameMillis = 40;
+
 	private int numFloors, numElevators;
 
 	private ElevatorShaft[] elevators;
@@ -31,6 +45,8 @@ public final class ElevatorGui extends Frame {
 
 	private int totalWidth, totalHeight;
 
+	private javax.swing.Timer renderTimer;
+
 	ElevatorGui(int numFloors, int numElevators, int[] numRidersPerFloor) {
 		this.numFloors = numFloors;
 		this.numElevators = numElevators;
@@ -64,6 +80,24 @@ public final class ElevatorGui extends Frame {
 		setVisible(true);
 
 		repaint();
+
+		renderTimer = new javax.swing.Timer(frameMillis, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				render();
+			}
+		});
+		renderTimer.start();
+	}
+
+	/**
+	 * Repaint every floor and shaft that changed since the last frame.
+	 */
+	private void render() {
+		for (int i = 0; i < numFloors; i++)
+			floors[i].render();
+
+		for (int i = 0; i < numElevators; i++)
+			elevators[i].render();
 	}
 
 	void openDoors(int elevator) {
@@ -143,11 +177,15 @@ public final class ElevatorGui extends Frame {
 	}
 
 	private class Floor extends Canvas {
-		int floor, numRiders;
+		int floor;
 
-		boolean upSet = false;
+		volatile int numRiders;
 
-		boolean downSet = false;
+		volatile boolean upSet = false;
+
+		volatile boolean downSet = false;
+
+		AtomicBoolean changed = new AtomicBoolean(false);
 
 		Floor(int floor, int numRiders) {
 			this.floor = floor;
@@ -168,56 +206,49 @@ public final class ElevatorGui extends Frame {
 			return getPreferredSize();
 		}
 
-		public void repaint() {
-			super.repaint();
-
-			if (TCB.isNachosThread()) {
-				try {
-					Thread.sleep(100);
-				}
-				catch (InterruptedException e) {
-				}
-			}
+		void render() {
+			if (changed.getAndSet(false))
+				repaint();
 		}
 
 		void pressUpButton() {
 			if (!upSet) {
 				upSet = true;
-				repaint();
+				changed.set(true);
 			}
 		}
 
 		void pressDownButton() {
 			if (!downSet) {
 				downSet = true;
-				repaint();
+				changed.set(true);
 			}
 		}
 
 		void clearUpButton() {
 			if (upSet) {
 				upSet = false;
-				repaint();
+				changed.set(true);
 			}
 		}
 
 		void clearDownButton() {
 			if (downSet) {
 				downSet = false;
-				repaint();
+				changed.set(true);
 			}
 		}
 
 		void addRider() {
 			numRiders++;
 
-			repaint();
+			changed.set(true);
 		}
 
 		void removeRider() {
 			numRiders--;
 
-			repaint();
+			changed.set(true);
 		}
 
 		public void paint(Graphics g) {
@@ -288,62 +319,64 @@ public final class ElevatorGui extends Frame {
 			return getPreferredSize();
 		}
 
-		private void repaintElevator() {
-			repaint(s, h * (numFloors - 1 - Math.max(floor, prevFloor)), w - 2
-					* s, h * 2);
-
-			try {
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e) {
-			}
+		/**
+		 * Repaint the part of the shaft between the floor the car was last
+		 * drawn at and the floor it is at now.
+		 */
+		void render() {
+			if (!changed.getAndSet(false))
+				return;
+
+			int at = floor;
+			repaint(s, h * (numFloors - 1 - Math.max(at, drawnFloor)), w - 2
+					* s, h * (Math.abs(at - drawnFloor) + 1));
+			drawnFloor = at;
 		}
 
 		void openDoors() {
 			doorsOpen = true;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		void closeDoors() {
 			doorsOpen = false;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		void setDirectionDisplay(int direction) {
 			this.direction = direction;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		void pressFloorButton(int floor) {
 			if (!floorsSet[floor]) {
 				floorsSet[floor] = true;
 
-				repaintElevator();
+				changed.set(true);
 			}
 		}
 
 		void elevatorMoved(int floor) {
-			prevFloor = this.floor;
 			this.floor = floor;
 
 			floorsSet[floor] = false;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		void addRider() {
 			numRiders++;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		void removeRider() {
 			numRiders--;
 
-			repaintElevator();
+			changed.set(true);
 		}
 
 		public void paint(Graphics g) {
@@ -417,11 +450,16 @@ public final class ElevatorGui extends Frame {
 
 		private static final int s = 5;
 
-		private boolean doorsOpen = false;
+		private volatile boolean doorsOpen = false;
+
+		private volatile int floor = 0, numRiders = 0;
+
+		private volatile int direction = ElevatorBank.dirNeither;
 
-		private int floor = 0, prevFloor = 0, numRiders = 0;
+		/** Touched only by the render timer. */
+		private int drawnFloor = 0;
 
-		private int direction = ElevatorBank.dirNeither;
+		private AtomicBoolean changed = new AtomicBoolean(false);
 
 		private int elevator;
 
@@ -6,7 +6,8 @@ import nachos.security.*;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
- * subset of the R3000 instruction set. Specifically, the processor lacks all
+ * subset of the R3000 instruction set, plus the MIPS II <tt>ll</tt> and
+ * <tt>sc</tt> instructions. Specifically, the processor lacks all
  * coprocessor support, and can only execute in user mode. Address translation
  * information is accessed via the API. The API also allows a kernel to set an
  * exception handler to be called on any user mode exception.
@@ -175,6 +176,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		linkedAddress = -1;
 	}
 
 	/**
@@ -402,7 +404,28 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		breakLink(paddr);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+	}
+
+	/**
+	 * Break the link set by the last <tt>ll</tt> if it is on the word
+	 * containing physical address <i>paddr</i>. Called for every store, so
+	 * that an <tt>sc</tt> fails if anything wrote the linked word after the
+	 * <tt>ll</tt>.
+	 * 
+	 * <p>
+	 * Links hold physical addresses, so that a store through any mapping of
+	 * the word breaks them. A processor sharing this memory with others would
+	 * have to break the links of all of them on each store.
+	 * 
+	 * @param paddr the physical address being written.
+	 */
+	private void breakLink(int paddr) {
+		if ((paddr & ~0x3) == linkedAddress)
+			linkedAddress = -1;
 	}
 
 	/**
@@ -573,6 +596,15 @@ public final class Processor {
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/**
+	 * The physical address of the word linked by the last <tt>ll</tt>, or -1
+	 * if there is no link. An <tt>sc</tt> only stores while the link is
+	 * intact. The link is broken by any store to the word, by any interrupt
+	 * or exception (so by every switch to the kernel, and with it every
+	 * context switch), and by <tt>setPageTable()</tt>.
+	 */
+	private int linkedAddress = -1;
+
 	private static final char dbgProcessor = 'p';
 
 	private static final char dbgDisassemble = 'm';
@@ -582,6 +614,7 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			linkedAddress = -1;
 		}
 	}
 
@@ -609,6 +642,7 @@ public final class Processor {
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
+			linkedAddress = -1;
 
 			Lib.assertTrue(exceptionHandler != null);
 
@@ -865,6 +899,7 @@ public final class Processor {
 		private void execute() throws MipsException {
 			int value;
 			int preserved;
+			int paddr;
 
 			switch (operation) {
 			case Mips.ADD:
@@ -1023,6 +1058,28 @@ public final class Processor {
 				writeMem(addr & ~0x3, 4, (int) dst);
 				break;
 
+			case Mips.LL:
+				// ll is interlocked, so the word is available to the next
+				// instruction
+				paddr = translate(addr, size, false);
+				dst = Lib.bytesToInt(mainMemory, paddr, size);
+				linkedAddress = paddr;
+				break;
+
+			case Mips.SC:
+				dst = 0;
+				if (linkedAddress == -1)
+					break;
+
+				paddr = translate(addr, size, true);
+				if (paddr == linkedAddress) {
+					Lib.bytesFromInt(mainMemory, paddr, size, (int) src2);
+					dst = 1;
+				}
+
+				linkedAddress = -1;
+				break;
+
 			case Mips.UNIMPL:
 				System.err.println("Warning: encountered unimplemented inst");
 
@@ -1116,7 +1173,8 @@ public final class Processor {
 				NOR = 12, XOR = 13, LUI = 14, MFLO = 21, MFHI = 22, MTLO = 23,
 				MTHI = 24, JUMP = 25, BEQ = 26, BNE = 27, BLEZ = 28, BGTZ = 29,
 				BLTZ = 30, BGEZ = 31, SYSCALL = 32, LOAD = 33, LWL = 36,
-				LWR = 37, STORE = 38, SWL = 39, SWR = 40, MAX = 40;
+				LWR = 37, STORE = 38, SWL = 39, SWR = 40, LL = 41, SC = 42,
+				MAX = 42;
 
 		static final int IFMT = 1, JFMT = 2, RFMT = 3;
 
@@ -1167,9 +1225,9 @@ public final class Processor {
 				new Mips(SWL, "swl ta", IFMT, 0),
 				new Mips(STORE, "sw ta", IFMT, SIZEW), new Mips(), new Mips(),
 				new Mips(SWR, "swr ta", IFMT, 0), new Mips(),
-				new Mips(UNIMPL, "ll "), new Mips(), new Mips(), new Mips(),
+				new Mips(LL, "ll ta", IFMT, DST | SIZEW), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(),
-				new Mips(UNIMPL, "sc "), new Mips(), new Mips(), new Mips(),
+				new Mips(SC, "sc ta", IFMT, DST | SIZEW), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(), };
 
 		static final Mips[] specialtable = {
@@ -14,6 +14,12 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.queueLimit</tt> messages (64 by
+ * default). A message that arrives for a full queue is dropped, as if it had
+ * been lost by the network, so a flood of packets to one port cannot use
+ * unbounded memory or hold up delivery to the other ports.
  */
 public class PostOffice {
 	/**
@@ -24,11 +30,12 @@ public class PostOffice {
 	public PostOffice() {
 		messageReceived = new Semaphore(0);
 		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		sendLock = new Lock("PostOffice.sendLock");
 
+		int queueLimit = Config.getInteger("PostOffice.queueLimit", 64);
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(queueLimit);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -71,6 +78,29 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve a message on the specified port, waiting at most <i>ticks</i>
+	 * ticks for one to arrive.
+	 * 
+	 * @param port the port on which to wait for a message.
+	 * @param ticks the most ticks to wait.
+	 * 
+	 * @return the message received, or <tt>null</tt> if none arrived in time.
+	 */
+	public MailMessage receive(int port, long ticks) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		Lib.debug(dbgNet, "waiting for mail on port " + port + " for " + ticks
+				+ " ticks");
+
+		MailMessage mail = (MailMessage) queues[port].removeFirst(ticks);
+
+		if (mail != null && Lib.test(dbgNet))
+			System.out.println("got mail on port " + port + ": " + mail);
+
+		return mail;
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -94,7 +124,9 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].offer(mail))
+				Lib.debug(dbgNet, "port " + mail.dstPort
+						+ " is full, dropping mail");
 		}
 	}
 
@@ -0,0 +1,45 @@
+/*
+ * futex1.c
+ *
+ * Test futexWait and futexWake, and the mutex built on them. A single
+ * process takes an uncontended mutex many times, which must never enter
+ * the kernel, and checks the error and mismatch returns of the syscalls.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ITERATIONS 10000
+
+int word = 7;
+mutex_t m = MUTEX_INITIALIZER;
+int counter = 0;
+
+int
+main (int argc, char *argv[])
+{
+    int i;
+
+    /* the word does not hold the expected value: return at once */
+    assert (futexWait (&word, 8) == -1);
+    /* nobody is waiting */
+    assert (futexWake (&word, 1) == 0);
+    /* unaligned and out-of-range addresses */
+    assert (futexWait ((int *) ((char *) &word + 1), 7) == -1);
+    assert (futexWake ((int *) 0x7ffffffc, 1) == -1);
+
+    for (i = 0; i < ITERATIONS; i++) {
+	mutex_lock (&m);
+	counter++;
+	mutex_unlock (&m);
+    }
+    assert (counter == ITERATIONS);
+    assert (m == 0);
+
+    assert (mutex_trylock (&m));
+    assert (!mutex_trylock (&m));
+    mutex_unlock (&m);
+
+    printf ("futex1: %d uncontended lock/unlock pairs passed\n", ITERATIONS);
+    return 0;
+}
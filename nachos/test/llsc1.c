@@ -0,0 +1,109 @@
+/*
+ * llsc1.c
+ *
+ * Test the ll and sc instructions, and the spinlock and lock-free counter
+ * built on them. The counting loops run long enough that timer interrupts
+ * land between some ll/sc pairs, which must make the sc fail and the loop
+ * retry, without losing or repeating an update.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ITERATIONS 20000
+
+typedef volatile int spinlock_t;
+
+static void
+spin_lock (spinlock_t *l)
+{
+    /* only try the atomic swap when the lock looks free */
+    while (atomicSwap ((int *) l, 1) != 0)
+	while (*l != 0)
+	    ;
+}
+
+static void
+spin_unlock (spinlock_t *l)
+{
+    *l = 0;
+}
+
+/* ll a word, store to it, then sc: the sc must fail and not store */
+static int
+sc_after_store (int *p, int value)
+{
+    int old, ok;
+
+    __asm__ __volatile__ (
+	".set push\n\t.set mips2\n\t.set noreorder\n\t"
+	"ll\t%0,0(%2)\n\t"
+	"sw\t$0,0(%2)\n\t"
+	"move\t%1,%3\n\t"
+	"sc\t%1,0(%2)\n\t"
+	".set pop"
+	: "=&r" (old), "=&r" (ok)
+	: "r" (p), "r" (value)
+	: "memory");
+
+    return ok;
+}
+
+/* ll a word, make a syscall, then sc: the trap must break the link */
+static int
+sc_after_trap (int *p, int value)
+{
+    int old, ok;
+
+    __asm__ __volatile__ (
+	".set push\n\t.set mips2\n\t.set noreorder\n\t"
+	"ll\t%0,0(%2)\n\t"
+	"move\t$4,%2\n\t"
+	"move\t$5,$0\n\t"
+	"addiu\t$2,$0,%4\n\t"
+	"syscall\n\t"
+	"move\t%1,%3\n\t"
+	"sc\t%1,0(%2)\n\t"
+	".set pop"
+	: "=&r" (old), "=&r" (ok)
+	: "r" (p), "r" (value), "i" (syscallFutexWake)
+	: "$2", "$4", "$5", "memory");
+
+    return ok;
+}
+
+int word;
+int counter;
+spinlock_t lock = 0;
+int guarded;
+
+int
+main (int argc, char *argv[])
+{
+    int i;
+
+    word = 5;
+    assert (atomicCas (&word, 4, 9) == 5 && word == 5);
+    assert (atomicCas (&word, 5, 9) == 5 && word == 9);
+    assert (atomicSwap (&word, 3) == 9 && word == 3);
+    assert (atomicAdd (&word, -3) == 3 && word == 0);
+
+    word = 1;
+    assert (sc_after_store (&word, 2) == 0 && word == 0);
+    word = 1;
+    assert (sc_after_trap (&word, 2) == 0 && word == 1);
+
+    for (i = 0; i < ITERATIONS; i++)
+	atomicAdd (&counter, 1);
+    assert (counter == ITERATIONS);
+
+    for (i = 0; i < ITERATIONS; i++) {
+	spin_lock (&lock);
+	guarded++;
+	spin_unlock (&lock);
+    }
+    assert (guarded == ITERATIONS && lock == 0);
+
+    printf ("llsc1: passed\n");
+    return 0;
+}
@@ -0,0 +1,85 @@
+/*
+ * llscbench.c
+ *
+ * Compare the cost of user-level synchronization built on ll/sc with
+ * synchronization that enters the kernel. Each run increments a counter
+ * count times under one method:
+ *
+ *   add     lock-free atomicAdd()
+ *   spin    test-and-test-and-set spinlock around a plain increment
+ *   mutex   futex mutex (mutex_lock/mutex_unlock), uncontended
+ *   kernel  a trap into the kernel to lock and another to unlock, as a
+ *           lock kept in the kernel would need
+ *
+ * Usage: llscbench <add|spin|mutex|kernel> [count]
+ *
+ * Nachos has no clock syscall, so run one method per process and compare
+ * the user and kernel ticks that Nachos prints when it halts.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+typedef volatile int spinlock_t;
+
+static void
+spin_lock (spinlock_t *l)
+{
+    while (atomicSwap ((int *) l, 1) != 0)
+	while (*l != 0)
+	    ;
+}
+
+static void
+spin_unlock (spinlock_t *l)
+{
+    *l = 0;
+}
+
+int counter;
+spinlock_t spin = 0;
+mutex_t mutex = MUTEX_INITIALIZER;
+int kernelLock;
+
+int
+main (int argc, char *argv[])
+{
+    char *method = "add";
+    int count = 10000;
+    int i;
+
+    if (argc > 1)
+	method = argv[1];
+    if (argc > 2)
+	count = atoi (argv[2]);
+
+    if (strcmp (method, "add") == 0) {
+	for (i = 0; i < count; i++)
+	    atomicAdd (&counter, 1);
+    } else if (strcmp (method, "spin") == 0) {
+	for (i = 0; i < count; i++) {
+	    spin_lock (&spin);
+	    counter++;
+	    spin_unlock (&spin);
+	}
+    } else if (strcmp (method, "mutex") == 0) {
+	for (i = 0; i < count; i++) {
+	    mutex_lock (&mutex);
+	    counter++;
+	    mutex_unlock (&mutex);
+	}
+    } else if (strcmp (method, "kernel") == 0) {
+	for (i = 0; i < count; i++) {
+	    futexWake (&kernelLock, 0);
+	    counter++;
+	    futexWake (&kernelLock, 0);
+	}
+    } else {
+	printf ("usage: llscbench <add|spin|mutex|kernel> [count]\n");
+	return -1;
+    }
+
+    assert (counter == count);
+    printf ("llscbench: %s, %d increments\n", method, count);
+    return 0;
+}
@@ -0,0 +1,34 @@
+#include "stdlib.h"
+
+/* The mutex word is 0 when the mutex is free, 1 when it is held and nobody
+ * waits, and 2 when it is held and threads may be sleeping on it. Only the
+ * transitions through 2 enter the kernel.
+ */
+
+void mutex_lock(mutex_t *m) {
+  int c;
+
+  if ((c = atomicCas(m, 0, 1)) == 0)
+    return;
+
+  /* contended: mark the mutex as having waiters, and sleep until it is
+   * released and we take it in the waited-on state
+   */
+  if (c != 2)
+    c = atomicSwap(m, 2);
+  while (c != 0) {
+    futexWait(m, 2);
+    c = atomicSwap(m, 2);
+  }
+}
+
+int mutex_trylock(mutex_t *m) {
+  return atomicCas(m, 0, 1) == 0;
+}
+
+void mutex_unlock(mutex_t *m) {
+  if (atomicAdd(m, -1) != 1) {
+    *m = 0;
+    futexWake(m, 1);
+  }
+}
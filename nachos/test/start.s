@@ -67,3 +67,63 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futexWait, syscallFutexWait)
+	SYSCALLSTUB(futexWake, syscallFutexWake)
+
+/* -------------------------------------------------------------
+ * Atomic operations:
+ *	Read-modify-write of one word of memory, built on ll/sc. The
+ *	sc fails, and the loop retries, if anything else stored to
+ *	the word or the thread was switched out since the ll.
+ *
+ *	int atomicCas(int *addr, int expected, int value)
+ *		if *addr == expected, store value; return the old *addr
+ *	int atomicSwap(int *addr, int value)
+ *		store value; return the old *addr
+ *	int atomicAdd(int *addr, int delta)
+ *		add delta; return the old *addr
+ * -------------------------------------------------------------
+ */
+
+	.set	mips2
+	.set	noreorder
+
+	.globl	atomicCas
+	.ent	atomicCas
+atomicCas:
+	ll	$2,0($4)
+	bne	$2,$5,1f
+	move	$8,$6
+	sc	$8,0($4)
+	beq	$8,$0,atomicCas
+	nop
+1:	j	$31
+	nop
+	.end	atomicCas
+
+	.globl	atomicSwap
+	.ent	atomicSwap
+atomicSwap:
+	ll	$2,0($4)
+	move	$8,$5
+	sc	$8,0($4)
+	beq	$8,$0,atomicSwap
+	nop
+	j	$31
+	nop
+	.end	atomicSwap
+
+	.globl	atomicAdd
+	.ent	atomicAdd
+atomicAdd:
+	ll	$2,0($4)
+	addu	$8,$2,$5
+	sc	$8,0($4)
+	beq	$8,$0,atomicAdd
+	nop
+	j	$31
+	nop
+	.end	atomicAdd
+
+	.set	reorder
+	.set	mips1
@@ -34,4 +34,19 @@ int strncmp(const char *a, const char *b, int n);
 
 int atoi(const char *s);
 
+int atomicCas(int *addr, int expected, int value);
+int atomicSwap(int *addr, int value);
+int atomicAdd(int *addr, int delta);
+
+/* A mutex is an int initialized to MUTEX_INITIALIZER. Locking a free mutex
+ * and unlocking one that nobody waits for never enter the kernel.
+ */
+typedef int mutex_t;
+
+#define MUTEX_INITIALIZER	0
+
+void mutex_lock(mutex_t *m);
+int mutex_trylock(mutex_t *m);
+void mutex_unlock(mutex_t *m);
+
 #endif // STDLIB_H
@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +248,33 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* USER-LEVEL SYNCHRONIZATION SYSCALLS: futexWait, futexWake
+ *
+ * A futex is an aligned int in user memory that a user-level lock uses to
+ * hold its state. Threads only enter the kernel to sleep on a futex when the
+ * lock is contended, and to wake sleepers when some may be waiting. See
+ * mutex_lock() in stdlib.h.
+ */
+
+/**
+ * If *addr still equals expected, sleep until another thread calls
+ * futexWake() on the same address. The check and the sleep happen
+ * atomically, so a wakeup sent after the value changes cannot be missed.
+ *
+ * Returns 0 after being woken, or -1 if *addr did not equal expected or addr
+ * is not a valid, word-aligned address. In either case the caller should read
+ * *addr again and decide whether to retry.
+ */
+int futexWait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futexWait() on addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is not a valid,
+ * word-aligned address.
+ */
+int futexWake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
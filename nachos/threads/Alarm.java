@@ -2,14 +2,19 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a min-heap ordered by wake time, so waking the
+ * <i>k</i> threads that are due costs O(<i>k</i> log <i>n</i>), and a timer
+ * interrupt with nothing due only looks at the top of the heap. Due threads
+ * are woken on every timer interrupt, and also by the idle thread, so that
+ * when nothing else is running a short wait ends within a few ticks of its
+ * deadline rather than at the next timer interrupt.
  */
 public class Alarm {
 	/**
@@ -20,7 +25,6 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		this.threadRecorder = new HashMap<>();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -32,25 +36,77 @@ public class Alarm {
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, unless the scheduler decides the current thread should
+	 * keep running.
 	 */
 	public void timerInterrupt() {
-
 		boolean status = Machine.interrupt().disable();
-		if (!threadRecorder.isEmpty()){
-			Iterator<Map.Entry<KThread, Long>> iterator = threadRecorder.entrySet().iterator();
-			while (iterator.hasNext()) {
-				Map.Entry<KThread, Long> entry = iterator.next();
-				if(Machine.timer().getTime()>entry.getValue()){
-					KThread key = entry.getKey();
-					key.ready();
-					// System.out.println("Wake up one thread...");
-					iterator.remove();
-				}
+
+		wakeDue();
+		boolean preempt = ThreadedKernel.scheduler.shouldPreempt();
+		ThreadedKernel.scheduler.countPreemption(preempt);
+
+		Machine.interrupt().restore(status);
+		if (preempt)
+			KThread.currentThread().yield();
+	}
+
+	/**
+	 * Move every sleeping thread whose wake time has arrived to the ready
+	 * queue.
+	 */
+	void wakeDue() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long now = Machine.timer().getTime();
+		while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= now) {
+			Sleeper sleeper = sleepers.poll();
+
+			if (sleeper.cancelled)
+				continue;
+
+			if (sleeper.periodic != null) {
+				sleeper.periodic.expire(now);
+			}
+			else if (sleeper.queue == null) {
+				sleeper.thread.ready();
+			}
+			else if (sleeper.queue.remove(sleeper.thread)) {
+				sleeper.timedOut = true;
+				sleeper.thread.ready();
 			}
 		}
-        Machine.interrupt().restore(status);
-		KThread.currentThread().yield();
+	}
+
+	/**
+	 * Put the current thread to sleep in a thread queue for at most <i>x</i>
+	 * ticks. The caller must have disabled interrupts and added the current
+	 * thread to <i>queue</i> with <tt>waitForAccess()</tt>. If the thread is
+	 * still in the queue when the time is up, it is removed from the queue
+	 * with <tt>ThreadQueue.remove()</tt> and woken.
+	 * 
+	 * <p>
+	 * If the thread is given access first, its timeout is only marked
+	 * cancelled, and dropped when it reaches the top of the heap.
+	 * 
+	 * @param queue the queue the current thread is waiting in.
+	 * @param x the most ticks to wait; must be positive.
+	 * @return <tt>true</tt> if the thread was given access through
+	 * <tt>nextThread()</tt>, or <tt>false</tt> if it timed out.
+	 */
+	public boolean waitOn(ThreadQueue queue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(x > 0);
+
+		Sleeper sleeper = new Sleeper(KThread.currentThread(),
+				Machine.timer().getTime() + x, sequenceCount++);
+		sleeper.queue = queue;
+		sleepers.add(sleeper);
+
+		KThread.sleep();
+
+		sleeper.cancelled = true;
+		return !sleeper.timedOut;
 	}
 
 	/**
@@ -66,7 +122,6 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
 		boolean status = Machine.interrupt().disable();
 		if(x <= 0){
 			System.out.println("Wait time <= 0, return now.");
@@ -74,12 +129,193 @@ public class Alarm {
 			return;
 		}
 		long wakeTime = Machine.timer().getTime() + x;
-		threadRecorder.put(KThread.currentThread(), wakeTime);
+		sleepers.add(new Sleeper(KThread.currentThread(), wakeTime,
+				sequenceCount++));
 
 		KThread.sleep();
 		Machine.interrupt().restore(status);
 	}
 
+	/**
+	 * Run <i>handler</i> every <i>period</i> ticks, starting one period from
+	 * now. The handler is called from the timer interrupt handler with
+	 * interrupts disabled, so it must not block. Deadlines are fixed by the
+	 * original phase: the <i>k</i>th call is due <i>k</i> periods after this
+	 * call, however late the earlier calls ran. If a whole period passes
+	 * before a call can be made, the periods it skips are counted as missed
+	 * rather than run late.
+	 * 
+	 * @param period the period in ticks.
+	 * @param handler the handler to run.
+	 * @return a handle that can be used to cancel the timer.
+	 */
+	public Periodic schedulePeriodic(long period, Runnable handler) {
+		Lib.assertTrue(period > 0 && handler != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Periodic periodic = new Periodic(period, handler);
+		periodic.arm();
+
+		Machine.interrupt().restore(intStatus);
+		return periodic;
+	}
+
+	/**
+	 * Create a periodic timer for a thread to wait on with
+	 * <tt>Periodic.waitNext()</tt>. The first period ends one period from now.
+	 * 
+	 * @param period the period in ticks.
+	 * @return a new periodic timer.
+	 */
+	public Periodic newPeriodic(long period) {
+		Lib.assertTrue(period > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+		Periodic periodic = new Periodic(period, null);
+		Machine.interrupt().restore(intStatus);
+
+		return periodic;
+	}
+
+	/**
+	 * A periodic timer, created by <tt>schedulePeriodic()</tt> or
+	 * <tt>newPeriodic()</tt>. The timer keeps a single entry in the alarm's
+	 * heap, which is moved to the next deadline each period.
+	 */
+	public class Periodic {
+		Periodic(long period, Runnable handler) {
+			this.period = period;
+			this.handler = handler;
+			this.next = Machine.timer().getTime() + period;
+
+			sleeper = new Sleeper(null, next, 0);
+			sleeper.periodic = this;
+		}
+
+		/**
+		 * Wait for the end of the current period. If it has already ended,
+		 * return at once, counting any further periods that ended as missed.
+		 * Only for timers created by <tt>newPeriodic()</tt>.
+		 * 
+		 * @return <tt>true</tt> if a period ended, or <tt>false</tt> if the
+		 * timer was cancelled.
+		 */
+		public boolean waitNext() {
+			Lib.assertTrue(handler == null && waiter == null);
+
+			boolean intStatus = Machine.interrupt().disable();
+
+			if (!cancelled) {
+				long now = Machine.timer().getTime();
+				if (now >= next) {
+					advance(now);
+				}
+				else {
+					waiter = KThread.currentThread();
+					arm();
+					KThread.sleep();
+				}
+			}
+
+			Machine.interrupt().restore(intStatus);
+			return !cancelled;
+		}
+
+		/**
+		 * Stop this timer. A thread waiting in <tt>waitNext()</tt> is woken
+		 * and returns <tt>false</tt>.
+		 */
+		public void cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			if (!cancelled) {
+				cancelled = true;
+				sleeper.cancelled = true;
+
+				if (waiter != null) {
+					waiter.ready();
+					waiter = null;
+				}
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Return the number of periods that have ended and were handled.
+		 * 
+		 * @return the number of periods handled.
+		 */
+		public long getPeriods() {
+			return periods;
+		}
+
+		/**
+		 * Return the number of periods that ended while an earlier one was
+		 * still being waited for or handled, and were skipped.
+		 * 
+		 * @return the number of missed periods.
+		 */
+		public long getMissed() {
+			return missed;
+		}
+
+		/**
+		 * Put this timer's entry in the heap at its next deadline.
+		 */
+		void arm() {
+			sleeper.wakeTime = next;
+			sleeper.sequence = sequenceCount++;
+			sleepers.add(sleeper);
+		}
+
+		/**
+		 * Called by <tt>wakeDue()</tt> when the current period has ended.
+		 */
+		void expire(long now) {
+			advance(now);
+
+			if (handler != null) {
+				handler.run();
+				if (!cancelled)
+					arm();
+			}
+			else if (waiter != null) {
+				waiter.ready();
+				waiter = null;
+			}
+		}
+
+		/**
+		 * Account for the period that ended at <tt>next</tt>, and any others
+		 * that have ended since, and move <tt>next</tt> past <i>now</i>.
+		 */
+		private void advance(long now) {
+			long skipped = (now - next) / period;
+
+			periods++;
+			missed += skipped;
+			next += (skipped + 1) * period;
+		}
+
+		private long period;
+
+		private Runnable handler;
+
+		/** The end of the current period. */
+		private long next;
+
+		private Sleeper sleeper;
+
+		/** The thread in <tt>waitNext()</tt>, if any. */
+		private KThread waiter = null;
+
+		private boolean cancelled = false;
+
+		private long periods = 0, missed = 0;
+	}
+
 	public static void alarmTest1() {
 		int durations[] = {1000, 10*1000, 100*1000};
 		long t0, t1;
@@ -92,15 +328,201 @@ public class Alarm {
 		}
 	}
 
-	// Implement more test methods here ...
+	/**
+	 * Put many threads to sleep for random, mostly short, times at once. Check
+	 * that none wakes early, and report how late they wake on average.
+	 */
+	public static void alarmTest2() {
+		final int numThreads = 100;
+		final long[] late = new long[2];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final long x = 1 + Lib.random(2000);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					long due = Machine.timer().getTime() + x;
+					ThreadedKernel.alarm.waitUntil(x);
+					long now = Machine.timer().getTime();
+					Lib.assertTrue(now >= due, "alarm woke a thread early");
+					late[0] += now - due;
+					late[1] = Math.max(late[1], now - due);
+				}
+			}).setName("sleeper" + i);
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		System.out.println("alarmTest2: " + numThreads
+				+ " sleepers woke late by avg " + late[0] / numThreads
+				+ " ticks, max " + late[1] + " ticks");
+	}
+
+
+	/**
+	 * Check that the timed variants of the blocking primitives time out, and
+	 * that they still succeed when woken in time.
+	 */
+	public static void timeoutTest() {
+		final Semaphore sem = new Semaphore(0);
+		final Lock lock = new Lock();
+		final boolean[] result = new boolean[1];
+
+		long t0 = Machine.timer().getTime();
+		Lib.assertTrue(!sem.P(1000));
+		Lib.assertTrue(Machine.timer().getTime() - t0 >= 1000);
+
+		KThread waker = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(200);
+				sem.V();
+			}
+		}).setName("waker");
+		waker.fork();
+		t0 = Machine.timer().getTime();
+		Lib.assertTrue(sem.P(5000));
+		Lib.assertTrue(Machine.timer().getTime() - t0 < 5000);
+		waker.join();
+
+		// a waiter that times out must stop donating to the holder
+		lock.acquire();
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				result[0] = lock.tryAcquire(1000);
+			}
+		}).setName("waiter");
+		Scheduler s = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+		s.setPriority(waiter, s.getPriority() + 1);
+		Machine.interrupt().restore(intStatus);
+		waiter.fork();
+		waiter.join();
+		Lib.assertTrue(!result[0] && lock.isHeldByCurrentThread());
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(s.getEffectivePriority() == s.getPriority());
+		Machine.interrupt().restore(intStatus);
+
+		Condition cv = new Condition(lock);
+		Condition2 cv2 = new Condition2(lock);
+		Lib.assertTrue(!cv.sleepFor(500) && lock.isHeldByCurrentThread());
+		Lib.assertTrue(!cv2.sleepFor(500) && lock.isHeldByCurrentThread());
+		lock.release();
+		Lib.assertTrue(lock.tryAcquire(0));
+		lock.release();
+
+		final SynchList list = new SynchList();
+		Lib.assertTrue(list.removeFirst(500) == null);
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(200);
+				list.add("mail");
+			}
+		}).setName("producer");
+		producer.fork();
+		Lib.assertTrue("mail".equals(list.removeFirst(5000)));
+		producer.join();
+
+		System.out.println("timeoutTest: timed waits passed");
+	}
+
+	/**
+	 * Check that periodic timers keep to their original phase, count missed
+	 * periods, and stop when cancelled.
+	 */
+	public static void periodicTest() {
+		final long period = 1000;
+		final long[] fired = new long[1];
+
+		Periodic timer = ThreadedKernel.alarm.schedulePeriodic(period,
+				new Runnable() {
+					public void run() {
+						fired[0]++;
+					}
+				});
+
+		Periodic ticker = ThreadedKernel.alarm.newPeriodic(period);
+		long start = Machine.timer().getTime();
+
+		for (int k = 1; k <= 10; k++) {
+			// work for a varying part of the period; this must not drift
+			for (int j = 0; j < k * 5; j++) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+			}
+
+			Lib.assertTrue(ticker.waitNext());
+			long now = Machine.timer().getTime();
+			Lib.assertTrue(now >= start + k * period
+					&& now < start + k * period + Stats.TimerTicks * 2,
+					"periodic wait drifted");
+		}
+		Lib.assertTrue(ticker.getMissed() == 0);
+
+		// overrun: three periods end, one is handled and two are missed
+		ThreadedKernel.alarm.waitUntil(period * 3 + period / 2);
+		Lib.assertTrue(ticker.waitNext());
+		Lib.assertTrue(ticker.getMissed() == 2, "missed periods not counted");
+		ticker.cancel();
+		Lib.assertTrue(!ticker.waitNext());
 
+		timer.cancel();
+		long count = fired[0];
+		ThreadedKernel.alarm.waitUntil(period * 3);
+		Lib.assertTrue(fired[0] == count, "cancelled timer fired");
+		Lib.assertTrue(count == timer.getPeriods());
+
+		System.out.println("periodicTest: " + ticker.getPeriods()
+				+ " periodic waits, " + ticker.getMissed() + " missed; "
+				+ count + " handler calls");
+	}
 
 	// Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
 	public static void selfTest() {
 		alarmTest1();
+		alarmTest2();
+		timeoutTest();
+		periodicTest();
+	}
+
+	/**
+	 * A thread sleeping in <tt>waitUntil()</tt>.
+	 */
+	private static class Sleeper implements Comparable<Sleeper> {
+		Sleeper(KThread thread, long wakeTime, long sequence) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Sleeper other) {
+			if (wakeTime != other.wakeTime)
+				return (wakeTime < other.wakeTime) ? -1 : 1;
+			if (sequence != other.sequence)
+				return (sequence < other.sequence) ? -1 : 1;
 
-		// Invoke your other test methods here ...
+			return 0;
+		}
+
+		KThread thread;
+
+		long wakeTime;
+
+		/** The queue the thread waits in, or <tt>null</tt> for a plain wait. */
+		ThreadQueue queue = null;
+
+		/** The periodic timer this entry belongs to, if any. */
+		Periodic periodic = null;
+
+		boolean cancelled = false, timedOut = false;
+
+		/** Breaks ties between equal wake times, first come first woken. */
+		long sequence;
 	}
 
-	private HashMap<KThread, Long> threadRecorder;
+	private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+
+	private long sequenceCount = 0;
 }
@@ -8,34 +8,355 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * A communicator can also be created with a capacity, which makes it a
+ * bounded channel: words are kept in an <tt>int</tt> ring buffer, and a
+ * speaker only waits while the buffer is full. Speakers and listeners are
+ * woken only when the buffer goes from empty to non-empty or from full to
+ * not full, and the bulk <tt>speak()</tt> and <tt>listen()</tt> move as many
+ * words as fit each time, so a producer and a consumer can exchange a long
+ * stream with a few context switches per buffer. Nothing is allocated per
+ * word.
  */
 public class Communicator {
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new communicator with a buffer of <i>capacity</i> words. A
+	 * capacity of 0 gives the rendezvous behavior of <tt>Communicator()</tt>.
+	 *
+	 * @param capacity the number of words that can be spoken without a
+	 * listener.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		if (capacity > 0)
+			buffer = new int[capacity];
 	}
 
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
-	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 * Exactly one listener should receive <i>word</i>. In a bounded
+	 * communicator, returns as soon as the word is in the buffer.
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (capacity == 0) {
+			while (wordReady)
+				waitOn(speakers);
+
+			this.word = word;
+			wordReady = true;
+			long ticket = ++spoken;
+			wakeOne(listeners);
+
+			// wait for a listener to take the word
+			while (taken < ticket)
+				waitOn(handoff);
+		}
+		else {
+			while (count == capacity)
+				waitOn(speakers);
+
+			buffer[(head + count) % capacity] = word;
+			if (count++ == 0)
+				wakeAll(listeners);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Transfer <i>len</i> words from <i>words</i>, starting at <i>off</i>, in
+	 * order. In a bounded communicator, the words are copied into the buffer
+	 * as space becomes free, and this returns once the last one is in the
+	 * buffer. Otherwise each word is spoken separately.
+	 *
+	 * @param words the words to transfer.
+	 * @param off the index of the first word.
+	 * @param len the number of words.
+	 */
+	public void speak(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len >= 0 && off + len <= words.length);
+
+		if (capacity == 0) {
+			for (int i = 0; i < len; i++)
+				speak(words[off + i]);
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (len > 0) {
+			while (count == capacity)
+				waitOn(speakers);
+
+			boolean wasEmpty = (count == 0);
+			int n = Math.min(len, capacity - count);
+			int tail = (head + count) % capacity;
+			int first = Math.min(n, capacity - tail);
+
+			System.arraycopy(words, off, buffer, tail, first);
+			System.arraycopy(words, off + first, buffer, 0, n - first);
+			count += n;
+			off += n;
+			len -= n;
+
+			if (wasEmpty)
+				wakeAll(listeners);
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		int result;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (capacity == 0) {
+			while (!wordReady)
+				waitOn(listeners);
+
+			result = word;
+			wordReady = false;
+			taken++;
+			wakeAll(handoff);
+			wakeOne(speakers);
+		}
+		else {
+			while (count == 0)
+				waitOn(listeners);
+
+			result = buffer[head];
+			head = (head + 1) % capacity;
+			if (count-- == capacity)
+				wakeAll(speakers);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Wait for at least one word to be spoken, and then receive up to
+	 * <i>len</i> words into <i>into</i>, starting at <i>off</i>. In a bounded
+	 * communicator, takes as many buffered words as fit. Otherwise receives
+	 * one word.
+	 *
+	 * @param into the array to receive words into.
+	 * @param off the index of the first word.
+	 * @param len the most words to receive; must be positive.
+	 * @return the number of words received.
+	 */
+	public int listen(int[] into, int off, int len) {
+		Lib.assertTrue(off >= 0 && len > 0 && off + len <= into.length);
+
+		if (capacity == 0) {
+			into[off] = listen();
+			return 1;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (count == 0)
+			waitOn(listeners);
+
+		boolean wasFull = (count == capacity);
+		int n = Math.min(len, count);
+		int first = Math.min(n, capacity - head);
+
+		System.arraycopy(buffer, head, into, off, first);
+		System.arraycopy(buffer, 0, into, off + first, n - first);
+		head = (head + n) % capacity;
+		count -= n;
+
+		if (wasFull)
+			wakeAll(speakers);
+
+		Machine.interrupt().restore(intStatus);
+		return n;
+	}
+
+	/**
+	 * Block the current thread on <i>queue</i>. Interrupts must be disabled.
+	 */
+	private static void waitOn(ThreadQueue queue) {
+		queue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+	}
+
+	private static void wakeOne(ThreadQueue queue) {
+		KThread thread = queue.nextThread();
+		if (thread != null)
+			thread.ready();
+	}
+
+	private static void wakeAll(ThreadQueue queue) {
+		KThread thread;
+		while ((thread = queue.nextThread()) != null)
+			thread.ready();
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		pairTest(new Communicator(), 3, 3, 60);
+		pairTest(new Communicator(4), 3, 3, 60);
+
+		benchmark("rendezvous", new Communicator(), false);
+		benchmark("bounded(64)", new Communicator(64), false);
+		benchmark("bounded(64) bulk", new Communicator(64), true);
+	}
+
+	/**
+	 * Have several speakers and listeners exchange words, and check that every
+	 * word is received exactly once.
+	 */
+	private static void pairTest(final Communicator c, int numSpeakers,
+			int numListeners, final int words) {
+		final int[] received = new int[numSpeakers * words];
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+
+		for (int i = 0; i < numSpeakers; i++) {
+			final int base = i * words;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int w = 0; w < words; w++)
+						c.speak(base + w);
+				}
+			}).setName("speaker" + i);
+		}
+
+		final int share = numSpeakers * words / numListeners;
+		for (int i = 0; i < numListeners; i++) {
+			threads[numSpeakers + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int w = 0; w < share; w++)
+						received[c.listen()]++;
+				}
+			}).setName("listener" + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		for (int i = 0; i < received.length; i++)
+			Lib.assertTrue(received[i] == 1, "word lost or duplicated");
 	}
+
+	/**
+	 * Stream words from one thread to another and check that they arrive in
+	 * order. If benchmarks are enabled, stream many more and report the
+	 * simulated time and context switches used.
+	 */
+	private static void benchmark(String name, final Communicator c,
+			final boolean bulk) {
+		final boolean report = ThreadedKernel.benchmarks();
+		final int words = report ? 10000 : 640, chunk = 64;
+		final boolean[] inOrder = { true };
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				int[] out = new int[chunk];
+				for (int w = 0; w < words; w += chunk) {
+					int n = Math.min(chunk, words - w);
+					if (bulk) {
+						for (int i = 0; i < n; i++)
+							out[i] = w + i;
+						c.speak(out, 0, n);
+					}
+					else {
+						for (int i = 0; i < n; i++)
+							c.speak(w + i);
+					}
+				}
+			}
+		}).setName("producer");
+
+		KThread consumer = new KThread(new Runnable() {
+			public void run() {
+				int[] in = new int[chunk];
+				int expected = 0;
+				while (expected < words) {
+					if (bulk) {
+						int n = c.listen(in, 0, chunk);
+						for (int i = 0; i < n; i++)
+							inOrder[0] &= (in[i] == expected++);
+					}
+					else {
+						inOrder[0] &= (c.listen() == expected++);
+					}
+				}
+			}
+		}).setName("consumer");
+
+		long switches = KThread.getNumSwitches();
+		long start = Machine.timer().getTime();
+
+		producer.fork();
+		consumer.fork();
+		producer.join();
+		consumer.join();
+
+		long ticks = Machine.timer().getTime() - start;
+		switches = KThread.getNumSwitches() - switches;
+		Lib.assertTrue(inOrder[0], "words arrived out of order");
+
+		if (!report)
+			return;
+
+		System.out.println("Communicator " + name + ": " + words + " words in "
+				+ ticks + " ticks (" + words * 1000 / ticks
+				+ " words per 1000 ticks), " + switches + " context switches");
+	}
+
+	private int capacity;
+
+	private ThreadQueue speakers = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue listeners = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	/** Rendezvous mode: speakers waiting for their word to be taken. */
+	private ThreadQueue handoff = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	/** Rendezvous mode: the word waiting for a listener. */
+	private int word;
+
+	private boolean wordReady = false;
+
+	/** Rendezvous mode: words handed over and words taken so far. */
+	private long spoken = 0, taken = 0;
+
+	/** Bounded mode: the ring buffer, and its first word and length. */
+	private int[] buffer = null;
+
+	private int head = 0, count = 0;
 }
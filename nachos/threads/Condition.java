@@ -2,10 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables.
  * 
  * <p>
  * A condition variable is a synchronization primitive that does not have a
@@ -60,8 +58,6 @@ public class Condition {
 	 */
 	public Condition(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-
-		waitQueue = new LinkedList<Semaphore>();
 	}
 
 	/**
@@ -71,20 +67,48 @@ public class Condition {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 * 
 	 * <p>
-	 * This implementation uses semaphores to implement this, by allocating a
-	 * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-	 * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-	 * though the lock is released before caling <tt>P()</tt>.
+	 * The thread is linked into the wait list through its own
+	 * <tt>KThread</tt> fields, so nothing is allocated. It is added to the
+	 * list before the lock is released, with interrupts disabled until it is
+	 * asleep, so there is no chance it will miss the wake-up.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
-		waitQueue.add(waiter);
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitQueue.waitForAccess(KThread.currentThread());
+		conditionLock.release();
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+		conditionLock.acquire();
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting after <i>ticks</i> ticks. The
+	 * lock is reacquired in either case.
+	 * 
+	 * @param ticks the most ticks to wait. If not positive, return at once.
+	 * @return <tt>true</tt> if the thread was woken, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (ticks <= 0)
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
 
+		waitQueue.waitForAccess(KThread.currentThread());
 		conditionLock.release();
-		waiter.P();
+		boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+
+		Machine.interrupt().restore(intStatus);
 		conditionLock.acquire();
+
+		return woken;
 	}
 
 	/**
@@ -94,8 +118,13 @@ public class Condition {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		if (!waitQueue.isEmpty())
-			((Semaphore) waitQueue.removeFirst()).V();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -105,11 +134,130 @@ public class Condition {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while (!waitQueue.isEmpty())
-			wake();
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitQueue.readyAll();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		orderTest();
+		if (ThreadedKernel.benchmarks())
+			broadcastTest(100, 20);
+		else
+			broadcastTest(10, 5);
+	}
+
+	/**
+	 * Check that <tt>wake()</tt> wakes threads in the order they went to
+	 * sleep, and that a timed sleep that is not woken leaves the wait list.
+	 */
+	private static void orderTest() {
+		final Lock lock = new Lock();
+		final Condition cv = new Condition(lock);
+		final int numThreads = 4;
+		final int[] slept = new int[numThreads], woken = new int[numThreads];
+		final int[] count = new int[2]; // slept, woken
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					slept[count[0]++] = id;
+					cv.sleep();
+					woken[count[1]++] = id;
+					lock.release();
+				}
+			}).setName("order" + i);
+			threads[i].fork();
+		}
+
+		lock.acquire();
+		while (count[0] < numThreads) {
+			lock.release();
+			KThread.yield();
+			lock.acquire();
+		}
+
+		Lib.assertTrue(!cv.sleepFor(100), "timed sleep was woken");
+
+		// wake one thread at a time, and let it run before waking the next
+		for (int i = 0; i < numThreads; i++) {
+			cv.wake();
+			while (count[1] == i) {
+				lock.release();
+				KThread.yield();
+				lock.acquire();
+			}
+			Lib.assertTrue(woken[i] == slept[i], "threads woken out of order");
+		}
+		lock.release();
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+	}
+
+	/**
+	 * Have <i>numThreads</i> threads wait on one condition variable and wake
+	 * them all with <tt>wakeAll()</tt>, <i>rounds</i> times. Reports the host
+	 * time per wakeup if benchmarks are enabled.
+	 */
+	private static void broadcastTest(final int numThreads, final int rounds) {
+		final Lock lock = new Lock();
+		final Condition cv = new Condition(lock);
+		final Condition arrived = new Condition(lock);
+		final int[] count = new int[1], generation = new int[1];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					for (int r = 0; r < rounds; r++) {
+						if (++count[0] == numThreads)
+							arrived.wake();
+						while (generation[0] == r)
+							cv.sleep();
+					}
+					lock.release();
+				}
+			}).setName("waiter" + i);
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+
+		long start = System.nanoTime();
+
+		lock.acquire();
+		for (int r = 0; r < rounds; r++) {
+			while (count[0] < numThreads)
+				arrived.sleep();
+			count[0] = 0;
+			generation[0]++;
+			cv.wakeAll();
+		}
+		lock.release();
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		long ns = System.nanoTime() - start;
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println("Condition broadcast (" + numThreads + " threads, "
+				+ rounds + " rounds): " + ns / (numThreads * rounds)
+				+ " ns per wakeup");
 	}
 
 	private Lock conditionLock;
 
-	private LinkedList<Semaphore> waitQueue;
+	private WaitList waitQueue = new WaitList();
 }
@@ -3,14 +3,15 @@ package nachos.threads;
 import nachos.machine.*;
 
 import java.util.LinkedList;
-import java.util.Queue;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Waiting threads are linked into a <tt>WaitList</tt> through their own
+ * <tt>KThread</tt> fields, so sleeping and waking allocate nothing, and
+ * <tt>wakeAll()</tt> readies every waiter in one interrupt-disabled section.
  * 
  * @see nachos.threads.Condition
  */
@@ -23,9 +24,7 @@ public class Condition2 {
 	 * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
-
 		this.conditionLock = conditionLock;
-		this.threadQueue = new LinkedList<>();
 	}
 
 	/**
@@ -37,13 +36,41 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		this.threadQueue.offer(KThread.currentThread());
+		boolean status = Machine.interrupt().disable();
+
+		waitQueue.waitForAccess(KThread.currentThread());
+		conditionLock.release();
+		KThread.sleep();
+
+		Machine.interrupt().restore(status);
+		conditionLock.acquire();
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but give up waiting after <i>ticks</i> ticks. A
+	 * thread that times out is removed from the wait queue, and the lock is
+	 * reacquired in either case.
+	 * 
+	 * @param ticks the most ticks to wait. If not positive, return at once.
+	 * @return <tt>true</tt> if the thread was woken, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (ticks <= 0)
+			return false;
+
+		boolean status = Machine.interrupt().disable();
 
+		waitQueue.waitForAccess(KThread.currentThread());
 		conditionLock.release();
-        boolean status = Machine.interrupt().disable();
-        KThread.sleep();
-        Machine.interrupt().restore(status);
+		boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+
+		Machine.interrupt().restore(status);
 		conditionLock.acquire();
+
+		return woken;
 	}
 
 	/**
@@ -54,10 +81,10 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		boolean status = Machine.interrupt().disable();
-		if(!threadQueue.isEmpty()){
-			KThread head = threadQueue.poll();
-			head.ready();
-		}
+
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
 
 		Machine.interrupt().restore(status);
 	}
@@ -69,9 +96,11 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while(!threadQueue.isEmpty()){
-			wake();
-		}
+		boolean status = Machine.interrupt().disable();
+
+		waitQueue.readyAll();
+
+		Machine.interrupt().restore(status);
 	}
 
 	private static class InterlockTest {
@@ -177,5 +206,5 @@ public class Condition2 {
 
 
 	private Lock conditionLock;
-	private Queue<KThread> threadQueue;
+	private WaitList waitQueue = new WaitList();
 }
@@ -0,0 +1,568 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * An earliest-deadline-first scheduler for periodic, timer-driven threads.
+ *
+ * <p>
+ * A thread becomes real-time by calling <tt>admit()</tt> with the budget
+ * (worst-case ticks of work per job), the relative deadline and the period of
+ * its jobs. A new job is released every time the thread becomes ready after
+ * blocking, typically when it wakes from <tt>Alarm.waitUntil()</tt>, but no
+ * sooner than one period after the previous release: a thread that wakes
+ * early is held back until then. The job must finish, that is the thread must
+ * block again, within the relative deadline of its release. Real-time threads
+ * that are ready are kept in a binary min-heap ordered by absolute deadline,
+ * and always run before other threads. Threads that are not real-time are
+ * scheduled round-robin when no real-time thread is ready.
+ *
+ * <p>
+ * A job that runs for longer than its budget is throttled: it is preempted,
+ * and runs round-robin with the threads that are not real-time until it
+ * blocks. Together with the period, this bounds the processor time each
+ * admitted thread can take ahead of the others.
+ *
+ * <p>
+ * Admission control uses the density test: the sum over admitted threads of
+ * budget / min(deadline, period) must not exceed 1. A request that would
+ * break the test is refused, and the thread stays non-real-time. Since
+ * budgets and periods are enforced, one misbehaving thread cannot make the
+ * others miss their deadlines.
+ *
+ * <p>
+ * A job that finishes after its deadline counts as a deadline miss. Totals
+ * and per-thread counts of misses and budget overruns are printed when the
+ * kernel terminates.
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the deadline-ordered ready queue.
+	 *
+	 * @return a new EDF ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new EDFQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Make a thread real-time, if the admission test allows it. The thread
+	 * must not currently be on the ready queue; it is normally called by the
+	 * thread itself, or before the thread is forked. Its first job is
+	 * released as soon as it next becomes ready.
+	 *
+	 * @param thread the thread.
+	 * @param budget the most ticks of work the thread does per job.
+	 * @param deadline the deadline of each job, relative to its release.
+	 * @param period the minimum time between job releases.
+	 * @return <tt>true</tt> if the thread was admitted.
+	 */
+	public boolean admit(KThread thread, long budget, long deadline,
+			long period) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(budget > 0 && deadline > 0 && period > 0);
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(!state.realTime && state.heapIndex < 0);
+
+		double density = (double) budget / Math.min(deadline, period);
+		if (utilization + density > 1.0)
+			return false;
+
+		utilization += density;
+		state.realTime = true;
+		state.density = density;
+		state.budget = budget;
+		state.relativeDeadline = deadline;
+		state.period = period;
+		state.release = Machine.timer().getTime() - period;
+		state.absoluteDeadline = Machine.timer().getTime() + deadline;
+		state.used = 0;
+		state.throttled = false;
+		if (!admitted.contains(state))
+			admitted.add(state);
+
+		return true;
+	}
+
+	/**
+	 * Return a real-time thread to round-robin scheduling and give back its
+	 * share of the admission budget.
+	 *
+	 * @param thread the thread.
+	 */
+	public void release(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(state.realTime && state.heapIndex < 0
+				&& !state.pending);
+
+		utilization -= state.density;
+		state.realTime = false;
+	}
+
+	/**
+	 * Return the number of jobs that finished after their deadline.
+	 *
+	 * @return the number of deadline misses.
+	 */
+	public long getDeadlineMisses() {
+		return deadlineMisses;
+	}
+
+	/**
+	 * Return the number of jobs that were throttled for running past their
+	 * budget.
+	 *
+	 * @return the number of budget overruns.
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Preempt the running thread if a real-time thread with an earlier
+	 * deadline is ready, or if it is a real-time thread that has used up its
+	 * budget. A thread that is not real-time, or whose job is throttled, is
+	 * always preempted by a real-time thread, and otherwise runs out its
+	 * time slice.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null)
+			return true;
+
+		readyQueue.releaseDue();
+
+		ThreadState running = readyQueue.running;
+		if (running == null || !running.realTime || running.throttled)
+			return readyQueue.size > 0 || super.shouldPreempt();
+
+		long ran = Machine.timer().getTime() - running.dispatchTime;
+		if (running.used + ran >= running.budget) {
+			running.throttled = true;
+			overruns++;
+			running.overruns++;
+			return true;
+		}
+
+		return readyQueue.size > 0
+				&& readyQueue.heap[0].absoluteDeadline < running.absoluteDeadline;
+	}
+
+	public void printStats() {
+		super.printStats();
+
+		System.out.println("EDF: jobs " + jobs + ", deadline misses "
+				+ deadlineMisses + ", budget overruns " + overruns);
+
+		for (Iterator<ThreadState> i = admitted.iterator(); i.hasNext();) {
+			ThreadState state = i.next();
+			System.out.println("EDF: " + state.thread + " jobs " + state.jobs
+					+ ", misses " + state.misses + ", worst lateness "
+					+ state.worstLateness + ", overruns " + state.overruns);
+		}
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Run periodic real-time threads next to CPU-bound threads and an
+	 * admitted thread that never blocks, and report deadline misses. Check
+	 * that the periodic threads, which wake halfway through their period,
+	 * are released one period apart, and that the thread that overruns its
+	 * budget is throttled so the CPU-bound threads still run. Only runs when
+	 * the kernel is using an EDF scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		final EDFScheduler s = (EDFScheduler) ThreadedKernel.scheduler;
+		final long period = 4 * Stats.TimerTicks;
+		final int rounds = 20;
+		final boolean[] stop = new boolean[1];
+
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!s.admit(new KThread(), 3, 2, 2),
+				"admitted an overloaded thread");
+		Machine.interrupt().restore(intStatus);
+
+		KThread[] periodic = new KThread[3];
+		for (int i = 0; i < periodic.length; i++) {
+			periodic[i] = new KThread(new Runnable() {
+				public void run() {
+					ThreadState state = s.getThreadState(KThread
+							.currentThread());
+					long lastRelease = state.release;
+
+					for (int r = 0; r < rounds; r++) {
+						Lib.assertTrue(r == 0
+								|| state.release - lastRelease >= period,
+								"job released early");
+						lastRelease = state.release;
+
+						for (int j = 0; j < 10; j++) {
+							Machine.interrupt().disable();
+							Machine.interrupt().enable();
+						}
+						ThreadedKernel.alarm.waitUntil(period / 2);
+					}
+				}
+			}).setName("edf" + i);
+
+			intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(s.admit(periodic[i], 200, period, period));
+			Machine.interrupt().restore(intStatus);
+		}
+
+		final long[] hogWork = new long[1];
+		KThread[] hogs = new KThread[2];
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!stop[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+						hogWork[0]++;
+					}
+				}
+			}).setName("hog" + i);
+		}
+
+		// admitted with a small budget, but never blocks
+		KThread rogue = new KThread(new Runnable() {
+			public void run() {
+				while (!stop[0]) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("edf rogue");
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(s.admit(rogue, 100, period, period));
+		Machine.interrupt().restore(intStatus);
+
+		long before = s.getDeadlineMisses();
+		long overrunsBefore = s.getOverruns();
+
+		rogue.fork();
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].fork();
+		for (int i = 0; i < periodic.length; i++)
+			periodic[i].fork();
+		for (int i = 0; i < periodic.length; i++)
+			periodic[i].join();
+
+		Lib.assertTrue(hogWork[0] > 0, "throttled thread starved the hogs");
+		Lib.assertTrue(s.getOverruns() > overrunsBefore);
+
+		stop[0] = true;
+		rogue.join();
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		long misses = 0;
+		intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < periodic.length; i++) {
+			misses += s.getThreadState(periodic[i]).misses;
+			s.release(periodic[i]);
+		}
+		s.release(rogue);
+		Machine.interrupt().restore(intStatus);
+
+		Lib.assertTrue(misses == 0, "overrun made a periodic thread miss");
+
+		System.out.println("EDFScheduler: " + periodic.length
+				+ " periodic threads and an overrunning thread under load, "
+				+ "deadline misses " + (s.getDeadlineMisses() - before));
+	}
+
+	/**
+	 * The ready queue: real-time threads in a min-heap by absolute deadline,
+	 * followed by other threads in FIFO order.
+	 */
+	private class EDFQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the ready queue. A real-time thread that was
+		 * blocked starts a new job with a fresh deadline and budget. If
+		 * less than a period has passed since its last release, the job is
+		 * held back until a full period has passed.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			state.queued = true;
+
+			if (!state.realTime) {
+				fifo.add(thread);
+				return;
+			}
+
+			if (state != running) {
+				long now = Machine.timer().getTime();
+
+				state.release = Math.max(now, state.release + state.period);
+				state.absoluteDeadline = state.release
+						+ state.relativeDeadline;
+				state.used = 0;
+				state.throttled = false;
+
+				if (state.release > now) {
+					state.pending = true;
+					pending.add(state);
+					return;
+				}
+			}
+
+			if (state.throttled)
+				fifo.add(thread);
+			else
+				add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			releaseDue();
+
+			if (running != null && running.realTime) {
+				running.used += Machine.timer().getTime()
+						- running.dispatchTime;
+
+				// a real-time thread that blocks has finished its job
+				if (!running.queued)
+					finishJob(running);
+			}
+
+			running = null;
+
+			if (size > 0) {
+				ThreadState state = heap[0];
+				remove(state);
+				return dispatch(state);
+			}
+
+			if (!fifo.isEmpty())
+				return dispatch(getThreadState(fifo.removeFirst()));
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			dispatch(getThreadState(thread));
+		}
+
+		/**
+		 * Move every held-back job whose release time has come into the
+		 * heap.
+		 */
+		void releaseDue() {
+			long now = Machine.timer().getTime();
+			while (!pending.isEmpty() && pending.peek().release <= now) {
+				ThreadState state = pending.poll();
+				state.pending = false;
+				add(state);
+			}
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+			for (Iterator<KThread> i = fifo.iterator(); i.hasNext();)
+				System.out.print(i.next() + " ");
+		}
+
+		private KThread dispatch(ThreadState state) {
+			running = state;
+			state.queued = false;
+			state.dispatchTime = Machine.timer().getTime();
+			return state.thread;
+		}
+
+		private void finishJob(ThreadState state) {
+			long lateness = Machine.timer().getTime() - state.absoluteDeadline;
+
+			jobs++;
+			state.jobs++;
+
+			if (lateness > 0) {
+				deadlineMisses++;
+				state.misses++;
+				state.worstLateness = Math.max(state.worstLateness, lateness);
+			}
+		}
+
+		private void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			int index = size++;
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (heap[parent].absoluteDeadline <= state.absoluteDeadline)
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		/**
+		 * Remove the root of the heap, which must be <i>state</i>.
+		 */
+		private void remove(ThreadState state) {
+			Lib.assertTrue(state.heapIndex == 0);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			state.heapIndex = -1;
+
+			if (size == 0)
+				return;
+
+			int index = 0;
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size
+						&& heap[child + 1].absoluteDeadline < heap[child].absoluteDeadline)
+					child++;
+				if (heap[child].absoluteDeadline >= last.absoluteDeadline)
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = last;
+			last.heapIndex = index;
+		}
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		private LinkedList<KThread> fifo = new LinkedList<KThread>();
+
+		/** Released jobs held back until their release time. */
+		private PriorityQueue<ThreadState> pending =
+				new PriorityQueue<ThreadState>();
+
+		/** The thread most recently returned by <tt>nextThread()</tt>. */
+		private ThreadState running = null;
+	}
+
+	/**
+	 * The scheduling state of a thread. States are ordered by release time,
+	 * for the queue of held-back jobs.
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> for the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(ThreadState other) {
+			return Long.compare(release, other.release);
+		}
+
+		KThread thread;
+
+		boolean realTime = false;
+
+		double density;
+
+		long budget, relativeDeadline, period;
+
+		/** The release time and absolute deadline of the current job. */
+		long release, absoluteDeadline;
+
+		/** The ticks the current job has run. */
+		long used = 0;
+
+		long dispatchTime = 0;
+
+		/** The current job ran past its budget. */
+		boolean throttled = false;
+
+		/** The thread is on the ready queue, possibly held back. */
+		boolean queued = false;
+
+		/** The thread's next job is held back until its release time. */
+		boolean pending = false;
+
+		int heapIndex = -1;
+
+		long jobs = 0, misses = 0, worstLateness = 0, overruns = 0;
+	}
+
+	private EDFQueue readyQueue = null;
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+
+	/** The combined density of all admitted threads. */
+	private double utilization = 0;
+
+	private ArrayList<ThreadState> admitted = new ArrayList<ThreadState>();
+
+	private long jobs = 0, deadlineMisses = 0, overruns = 0;
+}
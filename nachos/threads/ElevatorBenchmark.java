@@ -0,0 +1,222 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A headless benchmark for elevator controllers. Riders arrive as a Poisson
+ * process in one of three traffic patterns, and both dispatchers of
+ * <tt>ElevatorController</tt> serve the same arrivals, so a change to the
+ * controller can be judged by the numbers rather than by watching the GUI.
+ *
+ * <p>
+ * The patterns are <i>up-peak</i>, where every rider enters at the lobby and
+ * rides to an upper floor; <i>down-peak</i>, where every rider rides from an
+ * upper floor to the lobby; and <i>inter-floor</i>, where riders travel
+ * between random floors. The bank is run without the GUI.
+ *
+ * <p>
+ * Each rider is a thread, and Nachos caps the number of live threads, so a
+ * large run is split into rounds of at most <tt>maxRidersPerRound</tt>
+ * riders. Each round starts with an empty building, and the statistics cover
+ * all rounds. The default arrival rates keep the default building below
+ * saturation for both dispatchers; a saturated run only measures how fast the
+ * queue grows within a round. The benchmark is configured with these keys:
+ *
+ * <table>
+ * <tr><td><tt>ElevatorBenchmark.elevators</tt></td><td>number of cars
+ * (default 4)</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.floors</tt></td><td>number of floors
+ * (default 16)</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.riders</tt></td><td>riders per pattern
+ * (default 1000)</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.interarrival</tt></td><td>mean ticks between
+ * arrivals for every pattern (default 20000 for up-peak, 16000 for down-peak
+ * and 6000 for inter-floor)</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.pattern</tt></td><td><tt>up</tt>,
+ * <tt>down</tt>, <tt>inter</tt> or <tt>all</tt> (default)</td></tr>
+ * <tr><td><tt>ElevatorBenchmark.seed</tt></td><td>random seed (default
+ * 1)</td></tr>
+ * </table>
+ */
+public class ElevatorBenchmark {
+	/**
+	 * Allocate a new benchmark for one traffic pattern.
+	 *
+	 * @param pattern one of <tt>upPeak</tt>, <tt>downPeak</tt> and
+	 * <tt>interFloor</tt>.
+	 * @param nearestCar <tt>true</tt> to dispatch the nearest car instead of
+	 * the car with the earliest ETA.
+	 */
+	public ElevatorBenchmark(int pattern, boolean nearestCar) {
+		Lib.assertTrue(pattern >= upPeak && pattern <= interFloor);
+
+		this.pattern = pattern;
+		this.nearestCar = nearestCar;
+	}
+
+	/**
+	 * Run the benchmark and print its report.
+	 *
+	 * @param numElevators the number of cars.
+	 * @param numFloors the number of floors.
+	 * @param numRiders the total number of riders.
+	 * @param interarrival the mean ticks between arrivals.
+	 * @param seed the seed for arrivals and floors.
+	 */
+	public void run(int numElevators, int numFloors, int numRiders,
+			int interarrival, long seed) {
+		Lib.assertTrue(numFloors >= 2 && numRiders > 0 && interarrival > 0);
+
+		Random random = new Random(seed);
+		ElevatorBank bank = Machine.bank();
+
+		waits = new long[numRiders];
+		travels = new long[numRiders];
+		trips = 0;
+		ticks = 0;
+
+		long wallStart = System.nanoTime();
+
+		for (int done = 0; done < numRiders;) {
+			int count = Math.min(numRiders - done, maxRidersPerRound);
+			bank.init(numElevators, numFloors,
+					new ElevatorController(nearestCar));
+
+			Rider[] riders = new Rider[count];
+			long arrival = 0;
+			for (int i = 0; i < count; i++) {
+				arrival += (long) (-Math.log(1.0 - random.nextDouble())
+						* interarrival);
+
+				int[] trip = newTrip(random, numFloors);
+				riders[i] = new Rider(arrival);
+				bank.addRider(riders[i], trip[0], new int[] { trip[1] });
+			}
+
+			long start = Machine.timer().getTime();
+			bank.run();
+			ticks += Machine.timer().getTime() - start;
+
+			for (int i = 0; i < count; i++)
+				record(riders[i]);
+
+			done += count;
+		}
+
+		long wall = System.nanoTime() - wallStart;
+
+		printReport(numElevators, numFloors, wall);
+	}
+
+	/**
+	 * Return a random trip for this benchmark's pattern, as a starting floor
+	 * and a destination.
+	 */
+	private int[] newTrip(Random random, int numFloors) {
+		int upper = 1 + random.nextInt(numFloors - 1);
+
+		switch (pattern) {
+		case upPeak:
+			return new int[] { lobby, upper };
+		case downPeak:
+			return new int[] { upper, lobby };
+		default:
+			int from = random.nextInt(numFloors);
+			int to = random.nextInt(numFloors - 1);
+			if (to >= from)
+				to++;
+			return new int[] { from, to };
+		}
+	}
+
+	private void record(Rider rider) {
+		long[] w = rider.getWaitTimes(), r = rider.getTravelTimes();
+		for (int i = 0; i < w.length; i++) {
+			if (trips == waits.length) {
+				waits = Arrays.copyOf(waits, trips * 2);
+				travels = Arrays.copyOf(travels, trips * 2);
+			}
+
+			waits[trips] = w[i];
+			travels[trips] = r[i];
+			trips++;
+		}
+	}
+
+	private void printReport(int numElevators, int numFloors, long wall) {
+		long[] w = Arrays.copyOf(waits, trips);
+		long[] r = Arrays.copyOf(travels, trips);
+
+		long wallMillis = Math.max(wall / 1000000, 1);
+
+		System.out.println("ElevatorBenchmark " + patternNames[pattern] + " "
+				+ (nearestCar ? "nearest-car" : "ETA/LOOK") + " ("
+				+ numElevators + "x" + numFloors + "): " + trips + " trips in "
+				+ ticks + " ticks, " + (trips * 1000000L / Math.max(ticks, 1))
+				+ " trips/Mtick; wait avg " + ElevatorController.average(w)
+				+ ", p50 " + ElevatorController.percentile(w, 50) + ", p95 "
+				+ ElevatorController.percentile(w, 95) + ", p99 "
+				+ ElevatorController.percentile(w, 99) + "; travel avg "
+				+ ElevatorController.average(r) + ", p99 "
+				+ ElevatorController.percentile(r, 99) + "; " + wallMillis
+				+ " ms, " + (ticks / wallMillis) + " ticks/ms");
+	}
+
+	/**
+	 * Run the benchmark configured in the Nachos configuration file for each
+	 * dispatcher.
+	 */
+	public static void benchmark() {
+		int numElevators = Config.getInteger("ElevatorBenchmark.elevators", 4);
+		int numFloors = Config.getInteger("ElevatorBenchmark.floors", 16);
+		int numRiders = Config.getInteger("ElevatorBenchmark.riders", 1000);
+		String name = Config.getString("ElevatorBenchmark.pattern", "all");
+		long seed = Config.getInteger("ElevatorBenchmark.seed", 1);
+
+		for (int pattern = upPeak; pattern <= interFloor; pattern++) {
+			if (!name.equals("all") && !name.equals(patternNames[pattern]))
+				continue;
+
+			int interarrival = Config.getInteger(
+					"ElevatorBenchmark.interarrival",
+					defaultInterarrivals[pattern]);
+
+			new ElevatorBenchmark(pattern, false).run(numElevators, numFloors,
+					numRiders, interarrival, seed);
+			new ElevatorBenchmark(pattern, true).run(numElevators, numFloors,
+					numRiders, interarrival, seed);
+		}
+	}
+
+	/** Riders enter at the lobby and ride up. */
+	public static final int upPeak = 0;
+
+	/** Riders ride down to the lobby. */
+	public static final int downPeak = 1;
+
+	/** Riders travel between random floors. */
+	public static final int interFloor = 2;
+
+	private static final String[] patternNames = { "up", "down", "inter" };
+
+	/** Mean ticks between arrivals for each pattern on a 4x16 building. */
+	private static final int[] defaultInterarrivals = { 20000, 16000, 6000 };
+
+	private static final int lobby = 0;
+
+	/** Leaves room under the thread limit for the controller and main. */
+	private static final int maxRidersPerRound = 200;
+
+	private int pattern;
+
+	private boolean nearestCar;
+
+	private long[] waits, travels;
+
+	private int trips;
+
+	private long ticks;
+}
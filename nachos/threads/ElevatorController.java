@@ -2,15 +2,48 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * A controller for all the elevators in an elevator bank. The controller
  * accesses the elevator bank through an instance of <tt>ElevatorControls</tt>.
+ *
+ * <p>
+ * Each hall call is given to one car when its button is pressed: the car
+ * with the earliest estimated time of arrival at the floor, heading the way
+ * the rider wants to go. The estimate follows the car along its current
+ * sweep, counting a door cycle for every stop it already has on the way.
+ *
+ * <p>
+ * Each car runs LOOK: it keeps moving in one direction while it has car
+ * calls, or hall calls in that direction, ahead of it, and turns around at
+ * the farthest call instead of at the end of the shaft. A car's direction
+ * display always shows the way it will leave the floor, and shows neither
+ * only when the car has nothing to do.
+ *
+ * <p>
+ * The interrupt handler only wakes the controller thread, which takes every
+ * pending event before deciding what any car does, so a burst of button
+ * presses costs one planning pass.
  */
 public class ElevatorController implements ElevatorControllerInterface {
 	/**
 	 * Allocate a new elevator controller.
 	 */
 	public ElevatorController() {
+		this(false);
+	}
+
+	/**
+	 * Allocate a new elevator controller that gives each hall call to the
+	 * nearest car, ignoring which way the car is going and what it has to do
+	 * first. Used as a baseline for the ETA dispatcher.
+	 *
+	 * @param nearestCar <tt>true</tt> to dispatch to the nearest car.
+	 */
+	ElevatorController(boolean nearestCar) {
+		this.nearestCar = nearestCar;
 	}
 
 	/**
@@ -19,12 +52,29 @@ public class ElevatorController implements ElevatorControllerInterface {
 	 * immediately after this controller is initialized, but not until the
 	 * interupt handler is set. The controller will start receiving events after
 	 * this method returns, but potentially before <tt>run()</tt> is called.
-	 * 
+	 *
 	 * @param controls the controller's interface to the elevator bank. The
 	 * controler must not attempt to access the elevator bank in <i>any</i>
 	 * other way.
 	 */
 	public void initialize(ElevatorControls controls) {
+		this.controls = controls;
+
+		numFloors = controls.getNumFloors();
+		cars = new Car[controls.getNumElevators()];
+		for (int i = 0; i < cars.length; i++)
+			cars[i] = new Car(i, controls.getFloor(i), numFloors);
+
+		upCall = new int[numFloors];
+		downCall = new int[numFloors];
+		Arrays.fill(upCall, -1);
+		Arrays.fill(downCall, -1);
+
+		controls.setInterruptHandler(new Runnable() {
+			public void run() {
+				eventWait.V();
+			}
+		});
 	}
 
 	/**
@@ -33,5 +83,466 @@ public class ElevatorController implements ElevatorControllerInterface {
 	 * call <tt>controls.finish()</tt> when the controller is finished.
 	 */
 	public void run() {
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			ElevatorEvent event;
+			while ((event = controls.getNextEvent()) != null) {
+				if (event.event == ElevatorEvent.eventRidersDone) {
+					Machine.interrupt().restore(intStatus);
+					controls.finish();
+					Lib.assertNotReached();
+				}
+
+				handleEvent(event);
+			}
+
+			long now = Machine.timer().getTime();
+			long nextClose = Long.MAX_VALUE;
+			for (int i = 0; i < cars.length; i++) {
+				step(cars[i], now);
+				if (cars[i].doorsOpen)
+					nextClose = Math.min(nextClose, cars[i].closeAt);
+			}
+
+			Machine.interrupt().restore(intStatus);
+
+			if (nextClose == Long.MAX_VALUE)
+				eventWait.P();
+			else
+				eventWait.P(nextClose - now);
+		}
+	}
+
+	private void handleEvent(ElevatorEvent event) {
+		switch (event.event) {
+		case ElevatorEvent.eventUpButtonPressed:
+			if (upCall[event.floor] == -1)
+				upCall[event.floor] = dispatch(event.floor, dirUp);
+			break;
+
+		case ElevatorEvent.eventDownButtonPressed:
+			if (downCall[event.floor] == -1)
+				downCall[event.floor] = dispatch(event.floor, dirDown);
+			break;
+
+		case ElevatorEvent.eventFloorButtonPressed:
+			cars[event.elevator].stops[event.floor] = true;
+			break;
+
+		case ElevatorEvent.eventElevatorArrived:
+			cars[event.elevator].moving = false;
+			cars[event.elevator].floor = event.floor;
+			break;
+		}
+	}
+
+	/**
+	 * Choose the car to answer a hall call.
+	 *
+	 * @return the index of the chosen car.
+	 */
+	private int dispatch(int floor, int direction) {
+		long now = Machine.timer().getTime();
+		int best = 0;
+		long bestCost = Long.MAX_VALUE;
+
+		for (int i = 0; i < cars.length; i++) {
+			long cost = nearestCar ? Math.abs(cars[i].floor - floor)
+					: eta(cars[i], floor, direction, now);
+			if (cost < bestCost) {
+				best = i;
+				bestCost = cost;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Estimate how long <i>car</i> would take to reach <i>floor</i> ready to
+	 * leave in <i>direction</i>, if it were given the call now. The car is
+	 * followed along its sweep to the farthest of its calls (or the new one)
+	 * and back, paying for a door cycle at every floor where it would stop.
+	 */
+	private long eta(Car car, int floor, int direction, long now) {
+		long time = car.doorsOpen ? Math.max(0, car.closeAt - now) : 0;
+		int pos = car.floor, sweep = car.direction;
+
+		if (sweep == dirNeither) {
+			if (pos == floor)
+				return time;
+			sweep = (floor > pos) ? dirUp : dirDown;
+		}
+
+		int lo = floor, hi = floor;
+		for (int f = 0; f < numFloors; f++) {
+			if (hasCall(car, f)) {
+				lo = Math.min(lo, f);
+				hi = Math.max(hi, f);
+			}
+		}
+
+		for (int steps = 0; steps <= 4 * numFloors; steps++) {
+			boolean turning = (sweep == dirUp) ? (pos >= hi) : (pos <= lo);
+
+			if (pos == floor && (sweep == direction || turning))
+				return time;
+
+			if (turning) {
+				sweep = -sweep;
+				continue;
+			}
+
+			pos += sweep;
+			time += Stats.ElevatorTicks;
+			if (pos != floor && stopsAt(car, pos, sweep))
+				time += doorCycle;
+		}
+
+		return time;
+	}
+
+	/**
+	 * Move <i>car</i> along: stop it for calls at its floor, close its doors
+	 * when they have been open long enough, and send it to its next stop.
+	 */
+	private void step(Car car, long now) {
+		if (car.moving) {
+			car.floor = controls.getFloor(car.index);
+
+			// a new call may have come up between the car and its
+			// destination
+			int next = nextStop(car);
+			if (next != -1 && next != car.destination
+					&& controls.moveTo(next, car.index))
+				car.destination = next;
+			return;
+		}
+
+		if (car.doorsOpen) {
+			if (car.display == dirNeither) {
+				car.direction = leavingDirection(car);
+				showDirection(car, car.direction);
+			}
+
+			// riders arriving now for the way the car is going board this
+			// car, so the call is answered
+			if (takeCall(car, car.display))
+				car.closeAt = Math.max(car.closeAt, now + timeDoorsOpen);
+
+			if (now < car.closeAt)
+				return;
+
+			controls.closeDoors(car.index);
+			car.doorsOpen = false;
+		}
+
+		int leaving = leavingDirection(car);
+		if (car.stops[car.floor] || callHere(car, leaving)) {
+			car.direction = leaving;
+			showDirection(car, leaving);
+			car.stops[car.floor] = false;
+			takeCall(car, leaving);
+
+			controls.openDoors(car.index);
+			car.doorsOpen = true;
+			car.closeAt = now + timeDoorsOpen;
+			return;
+		}
+
+		car.direction = leaving;
+		int next = nextStop(car);
+		if (next == -1) {
+			car.direction = dirNeither;
+			showDirection(car, dirNeither);
+			return;
+		}
+
+		showDirection(car, car.direction);
+		if (controls.moveTo(next, car.index)) {
+			car.moving = true;
+			car.destination = next;
+		}
+	}
+
+	/**
+	 * Return the direction a stopped car will leave its floor in: on along
+	 * its sweep if riders here want to go that way or it has anything to do
+	 * ahead, otherwise back the other way, or neither if it has nothing to
+	 * do at all.
+	 */
+	private int leavingDirection(Car car) {
+		int sweep = car.direction;
+		if (sweep == dirNeither)
+			sweep = nearestCallDirection(car);
+		if (sweep == dirNeither)
+			return dirNeither;
+
+		if (callFor(car.floor, sweep) != -1 || hasCallAhead(car, sweep))
+			return sweep;
+		if (callFor(car.floor, -sweep) != -1 || hasCallAhead(car, -sweep))
+			return -sweep;
+
+		return dirNeither;
+	}
+
+	/**
+	 * Pick a direction for an idle car: toward its nearest call, or the way
+	 * a call at its own floor wants to go.
+	 */
+	private int nearestCallDirection(Car car) {
+		if (callFor(car.floor, dirUp) == car.index)
+			return dirUp;
+		if (callFor(car.floor, dirDown) == car.index)
+			return dirDown;
+
+		for (int d = 1; d < numFloors; d++) {
+			if (car.floor + d < numFloors && hasCall(car, car.floor + d))
+				return dirUp;
+			if (car.floor - d >= 0 && hasCall(car, car.floor - d))
+				return dirDown;
+		}
+
+		return dirNeither;
+	}
+
+	/**
+	 * Return the floor <i>car</i> should stop at next along its sweep: the
+	 * nearest car call or same-direction hall call ahead of it, or failing
+	 * that the farthest opposite-direction hall call ahead, where it will
+	 * turn around.
+	 *
+	 * @return the floor, or -1 if the car has nothing ahead.
+	 */
+	private int nextStop(Car car) {
+		int sweep = car.direction;
+		if (sweep == dirNeither)
+			return -1;
+
+		int turnaround = -1;
+		for (int f = car.floor + sweep; f >= 0 && f < numFloors; f += sweep) {
+			if (car.stops[f] || callFor(f, sweep) == car.index)
+				return f;
+			if (callFor(f, -sweep) == car.index)
+				turnaround = f;
+		}
+
+		return turnaround;
 	}
+
+	private boolean hasCallAhead(Car car, int sweep) {
+		for (int f = car.floor + sweep; f >= 0 && f < numFloors; f += sweep) {
+			if (hasCall(car, f))
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean hasCall(Car car, int floor) {
+		return car.stops[floor] || upCall[floor] == car.index
+				|| downCall[floor] == car.index;
+	}
+
+	private boolean stopsAt(Car car, int floor, int sweep) {
+		return car.stops[floor] || callFor(floor, sweep) == car.index;
+	}
+
+	private boolean callHere(Car car, int direction) {
+		return direction != dirNeither && callFor(car.floor, direction) != -1;
+	}
+
+	private int callFor(int floor, int direction) {
+		if (direction == dirUp)
+			return upCall[floor];
+		else if (direction == dirDown)
+			return downCall[floor];
+		else
+			return -1;
+	}
+
+	/**
+	 * Clear the hall call at <i>car</i>'s floor for <i>direction</i>,
+	 * whichever car it was given to, since riders waiting for it can board
+	 * this one.
+	 *
+	 * @return <tt>true</tt> if there was a call.
+	 */
+	private boolean takeCall(Car car, int direction) {
+		if (direction == dirUp && upCall[car.floor] != -1) {
+			upCall[car.floor] = -1;
+			return true;
+		}
+		else if (direction == dirDown && downCall[car.floor] != -1) {
+			downCall[car.floor] = -1;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void showDirection(Car car, int direction) {
+		if (car.display != direction) {
+			car.display = direction;
+			controls.setDirectionDisplay(car.index, direction);
+		}
+	}
+
+	/**
+	 * Tests whether this module is working, with a small run of each
+	 * dispatcher. If benchmarks are enabled, also compares the ETA dispatcher
+	 * with nearest-car dispatch on the same riders.
+	 */
+	public static void selfTest() {
+		simulate(false, 2, 8, 30, 1);
+		simulate(true, 2, 8, 30, 1);
+
+		if (ThreadedKernel.benchmarks()) {
+			report("ETA/LOOK", false, 4, 16, 120, 1);
+			report("nearest-car", true, 4, 16, 120, 1);
+		}
+	}
+
+	/**
+	 * Run riders and report the average and 99th percentile time they
+	 * waited for a car and rode in one.
+	 */
+	private static void report(String name, boolean nearestCar,
+			int numElevators, int numFloors, int numRiders, long seed) {
+		long start = Machine.timer().getTime();
+		Rider[] riders = simulate(nearestCar, numElevators, numFloors,
+				numRiders, seed);
+		long ticks = Machine.timer().getTime() - start;
+
+		printReport(name, riders, ticks);
+	}
+
+	/**
+	 * Run riders with random stops, starting at random times over the first
+	 * part of the run, and check that every rider waited for and rode to
+	 * every stop.
+	 *
+	 * @return the riders.
+	 */
+	private static Rider[] simulate(boolean nearestCar, int numElevators,
+			int numFloors, int numRiders, long seed) {
+		Random random = new Random(seed);
+		ElevatorBank bank = Machine.bank();
+		bank.init(numElevators, numFloors, new ElevatorController(nearestCar));
+
+		Rider[] riders = new Rider[numRiders];
+		for (int i = 0; i < numRiders; i++) {
+			int floor = random.nextInt(numFloors);
+			int[] stops = new int[1 + random.nextInt(3)];
+			for (int s = 0, at = floor; s < stops.length; s++) {
+				do {
+					stops[s] = random.nextInt(numFloors);
+				} while (stops[s] == at);
+				at = stops[s];
+			}
+
+			riders[i] = new Rider(random.nextInt(numRiders * 2000));
+			bank.addRider(riders[i], floor, stops);
+		}
+
+		bank.run();
+
+		for (int i = 0; i < numRiders; i++) {
+			long[] w = riders[i].getWaitTimes(), r = riders[i].getTravelTimes();
+			for (int j = 0; j < w.length; j++)
+				Lib.assertTrue(w[j] >= 0 && r[j] > 0);
+		}
+
+		return riders;
+	}
+
+	/**
+	 * Print the average and 99th percentile wait and travel times of
+	 * <i>riders</i>.
+	 */
+	static void printReport(String name, Rider[] riders, long ticks) {
+		int trips = 0;
+		for (int i = 0; i < riders.length; i++)
+			trips += riders[i].getWaitTimes().length;
+
+		long[] waits = new long[trips], travels = new long[trips];
+		for (int i = 0, t = 0; i < riders.length; i++) {
+			long[] w = riders[i].getWaitTimes(), r = riders[i].getTravelTimes();
+			System.arraycopy(w, 0, waits, t, w.length);
+			System.arraycopy(r, 0, travels, t, r.length);
+			t += w.length;
+		}
+
+		System.out.println("ElevatorController " + name + ": " + trips
+				+ " trips in " + ticks + " ticks; wait avg " + average(waits)
+				+ ", p99 " + percentile(waits, 99) + "; travel avg "
+				+ average(travels) + ", p99 " + percentile(travels, 99));
+	}
+
+	static long average(long[] values) {
+		long sum = 0;
+		for (int i = 0; i < values.length; i++)
+			sum += values[i];
+
+		return (values.length == 0) ? 0 : sum / values.length;
+	}
+
+	static long percentile(long[] values, int p) {
+		if (values.length == 0)
+			return 0;
+
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int rank = (sorted.length * p + 99) / 100;
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	/** The controller's view of one elevator. */
+	private static class Car {
+		Car(int index, int floor, int numFloors) {
+			this.index = index;
+			this.floor = floor;
+			this.destination = floor;
+			stops = new boolean[numFloors];
+		}
+
+		int index;
+
+		/** The floor the car is at, or last passed while moving. */
+		int floor;
+
+		int destination;
+
+		/** The direction of the current sweep, or neither if idle. */
+		int direction = dirNeither;
+
+		/** The direction shown on the car's display. */
+		int display = dirNeither;
+
+		boolean moving = false, doorsOpen = false;
+
+		/** When the doors may close, if they are open. */
+		long closeAt;
+
+		/** Car calls: floors riders inside have asked for. */
+		boolean[] stops;
+	}
+
+	/** Ticks a stop adds to a trip: the doors held open, and slowing down. */
+	private static final int doorCycle = timeDoorsOpen + Stats.ElevatorTicks
+			/ 2;
+
+	private boolean nearestCar;
+
+	private ElevatorControls controls;
+
+	private int numFloors;
+
+	private Car[] cars;
+
+	/** The car given each floor's up and down hall call, or -1. */
+	private int[] upCall, downCall;
+
+	private Semaphore eventWait = new Semaphore(0);
 }
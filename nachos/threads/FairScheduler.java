@@ -0,0 +1,382 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, in the style of the Linux CFS.
+ *
+ * <p>
+ * Each thread accumulates <i>virtual runtime</i>: the simulated ticks it has
+ * run (read from the timer at every switch), scaled inversely by its weight.
+ * Runnable threads are kept in a red-black tree (<tt>TreeSet</tt>) ordered by
+ * virtual runtime, and the thread that has run least runs next.
+ *
+ * <p>
+ * A thread is not preempted by every timer interrupt. Instead it runs for a
+ * time slice computed from the number of runnable threads: the target
+ * latency divided among them, but never less than the minimum granularity.
+ * With many threads the slice shrinks to the granularity and latency grows
+ * linearly, rather than collapsing into constant switching. A thread given a
+ * fixed quantum with <tt>setQuantum()</tt> runs for that quantum instead.
+ *
+ * <p>
+ * A thread that wakes from blocking gets its virtual runtime raised to at
+ * least the smallest virtual runtime in the system minus half the target
+ * latency. A long sleeper therefore gets a bounded head start, not a burst
+ * that starves everyone else. The woken thread does not preempt the running
+ * one; it runs when the running thread's slice is up, so its response time
+ * can be as long as one slice.
+ *
+ * <p>
+ * Only the processor is scheduled this way; other thread queues are FIFO.
+ * The <tt>nachos.conf</tt> keys <tt>FairScheduler.targetLatency</tt> and
+ * <tt>FairScheduler.minGranularity</tt> set the latency and granularity in
+ * ticks. The priority of a thread is its weight.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		targetLatency = Config.getInteger("FairScheduler.targetLatency",
+				Stats.TimerTicks * 12);
+		minGranularity = Config.getInteger("FairScheduler.minGranularity",
+				Stats.TimerTicks);
+		Lib.assertTrue(targetLatency > 0 && minGranularity > 0);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the virtual-runtime ordered ready queue.
+	 *
+	 * @return a new fair ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new FairQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Preempt the current thread only once it has used up its time slice, and
+	 * only if there is another thread to run.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (readyQueue == null || readyQueue.running == null)
+			return true;
+		if (readyQueue.tree.isEmpty())
+			return false;
+
+		ThreadState running = readyQueue.running;
+		long ran = Machine.timer().getTime() - running.dispatchTime;
+		return ran >= getTimeSlice(running.thread);
+	}
+
+	/**
+	 * Return the time slice of the specified thread: the quantum set for it
+	 * with <tt>setQuantum()</tt>, or else the target latency divided among
+	 * the runnable threads. The adaptive quantum does not apply.
+	 *
+	 * @param thread the thread.
+	 * @return the time slice of the thread, in ticks.
+	 */
+	public long getTimeSlice(KThread thread) {
+		if (thread.quantum > 0)
+			return thread.quantum;
+		if (readyQueue == null)
+			return quantum;
+
+		return readyQueue.timeSlice();
+	}
+
+	/**
+	 * Return the weight of the specified thread.
+	 *
+	 * @param thread the thread.
+	 * @return the weight of the thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Set the weight of the specified thread.
+	 *
+	 * @param thread the thread.
+	 * @param weight the new weight, between 1 and <tt>weightMaximum</tt>.
+	 */
+	public void setPriority(KThread thread, int weight) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(weight >= 1 && weight <= weightMaximum);
+
+		getThreadState(thread).weight = weight;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		quantumTest();
+		stressTest(1000);
+		if (ThreadedKernel.benchmarks())
+			stressTest(4000);
+	}
+
+	/**
+	 * Check that a quantum set with <tt>setQuantum()</tt> replaces the fair
+	 * time slice, and that clearing it brings the fair slice back.
+	 */
+	private static void quantumTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FairScheduler s = new FairScheduler();
+		FairQueue queue = (FairQueue) s.newReadyQueue();
+		KThread thread = new KThread().setName("quantum");
+
+		Lib.assertTrue(s.getTimeSlice(thread) == queue.timeSlice());
+		s.setQuantum(thread, s.minGranularity * 3);
+		Lib.assertTrue(s.getTimeSlice(thread) == s.minGranularity * 3);
+		s.setQuantum(thread, 0);
+		Lib.assertTrue(s.getTimeSlice(thread) == queue.timeSlice());
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check that many runnable threads are picked in virtual runtime order,
+	 * and print the cost of waking and picking them if benchmarks are
+	 * enabled. Uses a private scheduler instance and threads that are never
+	 * forked.
+	 *
+	 * @param numThreads the number of runnable threads.
+	 */
+	private static void stressTest(int numThreads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FairScheduler s = new FairScheduler();
+		FairQueue queue = (FairQueue) s.newReadyQueue();
+		KThread[] threads = new KThread[numThreads];
+
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("fair" + i);
+			s.getThreadState(threads[i]).vruntime = Lib.random(1000000);
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			queue.waitForAccess(threads[i]);
+
+		long t1 = System.nanoTime();
+		long slice = queue.timeSlice();
+		long last = -1;
+		for (int i = 0; i < numThreads; i++) {
+			ThreadState state = s.getThreadState(queue.nextThread());
+			Lib.assertTrue(state.vruntime >= last);
+			last = state.vruntime;
+		}
+		long t2 = System.nanoTime();
+
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println("FairScheduler stress (" + numThreads
+				+ " threads): wake " + (t1 - t0) / numThreads
+				+ " ns/op, pick " + (t2 - t1) / numThreads
+				+ " ns/op, time slice " + slice + " ticks");
+	}
+
+	/**
+	 * The ready queue: runnable threads ordered by virtual runtime.
+	 */
+	private class FairQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the ready queue. If the thread is the current
+		 * thread, it is yielding and is charged for the ticks it ran.
+		 * Otherwise it is waking (or new) and its virtual runtime is brought
+		 * up to within the sleeper credit of the minimum.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (state == running) {
+				charge(state);
+				running = null;
+			}
+			else {
+				state.vruntime = Math.max(state.vruntime, minVruntime
+						- targetLatency / 2);
+			}
+
+			state.sequence = sequenceCount++;
+			tree.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the previous thread blocked or finished rather than yielding
+			if (running != null)
+				charge(running);
+
+			running = null;
+			if (tree.isEmpty())
+				return null;
+
+			ThreadState next = tree.pollFirst();
+			next.dispatchTime = Machine.timer().getTime();
+			running = next;
+			updateMinVruntime();
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			running = getThreadState(thread);
+			running.dispatchTime = Machine.timer().getTime();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = tree.iterator(); i.hasNext();)
+				System.out.print(i.next().thread + " ");
+		}
+
+		/**
+		 * Return the time slice of the running thread: the target latency
+		 * divided among all runnable threads, but at least the minimum
+		 * granularity.
+		 *
+		 * @return the current time slice, in ticks.
+		 */
+		long timeSlice() {
+			int runnable = tree.size() + 1;
+			return Math.max(minGranularity, targetLatency / runnable);
+		}
+
+		/**
+		 * Charge a thread for the ticks since it was dispatched.
+		 */
+		private void charge(ThreadState state) {
+			long ran = Machine.timer().getTime() - state.dispatchTime;
+			state.vruntime += ran * weightDefault / state.weight;
+			state.dispatchTime = Machine.timer().getTime();
+			updateMinVruntime();
+		}
+
+		/**
+		 * Advance the minimum virtual runtime, which never moves backwards.
+		 */
+		private void updateMinVruntime() {
+			long min = Long.MAX_VALUE;
+			if (running != null)
+				min = running.vruntime;
+			if (!tree.isEmpty())
+				min = Math.min(min, tree.first().vruntime);
+
+			if (min != Long.MAX_VALUE)
+				minVruntime = Math.max(minVruntime, min);
+		}
+
+		private TreeSet<ThreadState> tree = new TreeSet<ThreadState>();
+
+		/** The thread most recently returned by <tt>nextThread()</tt>. */
+		private ThreadState running = null;
+
+		private long minVruntime = 0;
+
+		private long sequenceCount = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> for the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		public int compareTo(ThreadState other) {
+			if (vruntime != other.vruntime)
+				return (vruntime < other.vruntime) ? -1 : 1;
+			if (sequence != other.sequence)
+				return (sequence < other.sequence) ? -1 : 1;
+
+			return 0;
+		}
+
+		KThread thread;
+
+		int weight = weightDefault;
+
+		long vruntime = 0;
+
+		long dispatchTime = 0;
+
+		/** Breaks ties between equal virtual runtimes, oldest first. */
+		long sequence;
+	}
+
+	/** The weight of a thread that has not been given one. */
+	public static final int weightDefault = 1024;
+
+	/** The largest weight a thread can have. */
+	public static final int weightMaximum = 1 << 20;
+
+	private int targetLatency;
+
+	private int minGranularity;
+
+	private FairQueue readyQueue = null;
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+}
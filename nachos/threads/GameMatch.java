@@ -8,6 +8,13 @@ import java.util.*;
  * ability into fixed-sized groups to play matches with each other.
  * Implement the class <i>GameMatch</i> using <i>Lock</i> and
  * <i>Condition</i> to synchronize player threads into groups.
+ *
+ * <p>
+ * Each ability has a slot holding the batch of players gathering for its
+ * next match. A player joins the batch in its slot and sleeps until the
+ * batch is full; the player that fills it numbers the match, puts a fresh
+ * batch in the slot, and wakes the others, who read the match number from
+ * the batch they joined. Nothing is kept once a match is formed.
  */
 public class GameMatch {
     
@@ -16,12 +23,15 @@ public class GameMatch {
 	abilityIntermediate = 2,
 	abilityExpert = 3;
 
+    private static final int numAbilities = 3;
+
     private Lock lock;
     private int numPlayersInMatch;
-    private ArrayList<Condition> conds;
-    private ArrayList<Stack<Integer>> currPlayers;
-    private HashMap<Integer, Integer> thread2MatchId;
-    private int id = 1;
+    /** Players of each ability waiting for their batch to fill. */
+    private Condition[] formed;
+    /** The batch each ability is gathering, indexed by ability - 1. */
+    private Batch[] open;
+    private int nextMatchId = 1;
 
     /**
      * Allocate a new GameMatch specifying the number of player
@@ -30,15 +40,12 @@ public class GameMatch {
      */
     public GameMatch (int numPlayersInMatch) {
         this.numPlayersInMatch = numPlayersInMatch;
-        lock = new Lock();
-        conds = new ArrayList<>();
-        currPlayers = new ArrayList<>();
-        thread2MatchId = new HashMap<>();
-        for (int i = 0; i < 3; i++) {
-            currPlayers.add(new Stack<>());
-        }
-        for (int i = 0; i < 3; i++) {
-            conds.add(new Condition(lock));
+        lock = new Lock("GameMatch.lock");
+        formed = new Condition[numAbilities];
+        open = new Batch[numAbilities];
+        for (int i = 0; i < numAbilities; i++) {
+            formed[i] = new Condition(lock);
+            open[i] = new Batch();
         }
     }
 
@@ -59,29 +66,35 @@ public class GameMatch {
      * or abilityExpert; return -1 otherwise.
      */
     public int play (int ability) {
-        lock.acquire();
-        System.out.println("lock successfully acquired");
-        if (ability != abilityBeginner && ability != abilityIntermediate && ability != abilityExpert) {
-            lock.release();
+        if (ability < abilityBeginner || ability > abilityExpert) {
             return -1;
         }
-        Stack<Integer> stack = currPlayers.get(ability - 1);
-	    stack.push(KThread.currentThread().getId());
-	    if (stack.size() < numPlayersInMatch) {
-	        System.out.println("sleep! ");
-	        conds.get(ability - 1).sleep();
+        int slot = ability - abilityBeginner;
+
+        lock.acquire();
+        Batch batch = open[slot];
+        if (++batch.players == numPlayersInMatch) {
+            batch.matchId = nextMatchId++;
+            open[slot] = new Batch();
+            formed[slot].wakeAll();
         } else {
-            boolean status1 = Machine.interrupt().disable();
-            System.out.println("wake! ");
-	        while (!stack.isEmpty()) {
-	            thread2MatchId.put(stack.pop(), id);
+            // only the players of this batch sleep on the slot's condition
+            // until it fills, but recheck after waking all the same
+            while (batch.matchId == 0) {
+                formed[slot].sleep();
             }
-	        id++;
-            Machine.interrupt().restore(status1);
-	        conds.get(ability - 1).wakeAll();
         }
         lock.release();
-        return thread2MatchId.get(KThread.currentThread().getId());
+        return batch.matchId;
+    }
+
+    /**
+     * The players gathering for one match. <tt>matchId</tt> is 0 until the
+     * batch is full, and never changes after that.
+     */
+    private static class Batch {
+        int players = 0;
+        int matchId = 0;
     }
 
     public static void matchTest4 () {
@@ -222,7 +235,97 @@ public class GameMatch {
         }
     }
 
+    /**
+     * Form 100,000 matches of four players with 4000 threads, and report
+     * the simulated and host time taken. See <tt>playTest</tt>.
+     */
+    public static void benchmark () {
+        playTest(100000, 20, 200, true);
+    }
+
+    /**
+     * Form <i>matches</i> matches of four players, with worker threads that
+     * take player jobs from a shared counter and play them. Workers run in
+     * <i>waves</i> waves of <i>workers</i> threads, so many threads play
+     * over the run while no more than a wave is alive at once. Each
+     * ability's jobs come in groups of a match, and a wave has more workers
+     * than can wait in unfilled batches, so every wave finishes. Checks
+     * that every match number from 1 up is returned to exactly four players
+     * of one ability, and prints the time taken if <i>report</i> is set.
+     */
+    private static void playTest (int matches, int waves, final int workers,
+                                  boolean report) {
+        final int size = 4;
+        final int jobsPerWave = matches * size / waves;
+        final GameMatch match = new GameMatch(size);
+        final int[] players = new int[matches + 1];
+        final int[] abilities = new int[matches + 1];
+        final int[] nextJob = new int[1];
+
+        long switches = KThread.getNumSwitches();
+        long ticks = Machine.timer().getTime();
+        long start = System.nanoTime();
+
+        for (int wave = 0; wave < waves; wave++) {
+            final int first = wave * jobsPerWave;
+            nextJob[0] = first;
+
+            KThread[] threads = new KThread[workers];
+            for (int i = 0; i < workers; i++) {
+                threads[i] = new KThread(new Runnable() {
+                    public void run() {
+                        while (true) {
+                            boolean intStatus = Machine.interrupt().disable();
+                            int job = nextJob[0]++;
+                            Machine.interrupt().restore(intStatus);
+                            if (job >= first + jobsPerWave) {
+                                break;
+                            }
+
+                            int ability = abilityBeginner + (job / size) % 3;
+                            int id = match.play(ability);
+                            Lib.assertTrue(id >= 1 && id <= matches,
+                                           "bad match number");
+                            Lib.assertTrue(abilities[id] == 0
+                                           || abilities[id] == ability,
+                                           "abilities mixed in a match");
+                            abilities[id] = ability;
+                            players[id]++;
+                        }
+                    }
+                }).setName("player" + (wave * workers + i));
+                threads[i].fork();
+            }
+            for (int i = 0; i < workers; i++) {
+                threads[i].join();
+            }
+        }
+
+        long ns = System.nanoTime() - start;
+        ticks = Machine.timer().getTime() - ticks;
+        switches = KThread.getNumSwitches() - switches;
+
+        for (int id = 1; id <= matches; id++) {
+            Lib.assertTrue(players[id] == size, "match " + id + " has "
+                           + players[id] + " players");
+        }
+
+        if (!report) {
+            return;
+        }
+
+        System.out.println("GameMatch: " + matches + " matches of " + size
+                           + " with " + waves * workers + " threads in "
+                           + ticks + " ticks, " + switches
+                           + " context switches, " + ns / matches
+                           + " ns per match");
+    }
+
     public static void selfTest() {
         matchTest4();
+        playTest(600, 2, 40, false);
+        if (ThreadedKernel.benchmarks()) {
+            benchmark();
+        }
     }
 }
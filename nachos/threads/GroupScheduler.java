@@ -0,0 +1,446 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the processor between groups of threads first,
+ * and between the threads of a group second.
+ *
+ * <p>
+ * Every thread belongs to a group; threads that were never placed in one
+ * belong to the <tt>kernel</tt> group. Each group has a weight and a
+ * <i>pass</i>. When a thread gives up the processor, its group's pass is
+ * advanced by the ticks it ran divided by the group's weight. The group with
+ * the smallest pass and a ready thread runs next, so over time every busy
+ * group gets processor time in proportion to its weight, no matter how many
+ * threads it has. Within a group, ready threads take turns in FIFO order.
+ *
+ * <p>
+ * A group that had nothing ready and becomes ready again has its pass raised
+ * to the smallest pass of the other groups, so it cannot save up credit while
+ * idle.
+ *
+ * <p>
+ * User processes put their threads in a group when they are started (see
+ * <tt>UserProcess</tt>). A process exec'd by the root process, such as each
+ * command the shell runs, starts a new group; a process exec'd by any other
+ * process joins its parent's group. A group is dropped once its last thread
+ * finishes. The default weight of a new group is set by
+ * <tt>GroupScheduler.weight</tt> in <tt>nachos.conf</tt>. Per-group ticks and
+ * shares are printed when the kernel terminates, with the groups that have
+ * finished summed into one line. Other thread queues are FIFO.
+ */
+public class GroupScheduler extends Scheduler {
+	/**
+	 * Allocate a new group scheduler.
+	 */
+	public GroupScheduler() {
+		defaultWeight = Config.getInteger("GroupScheduler.weight", 100);
+		Lib.assertTrue(defaultWeight >= 1 && defaultWeight <= weightMaximum);
+
+		kernelGroup = newGroup("kernel");
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the group ready queue.
+	 *
+	 * @return a new group ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new GroupQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Create a new, empty group with the default weight.
+	 *
+	 * @param name the name of the group, used in the accounting output.
+	 * @return the new group.
+	 */
+	public Group newGroup(String name) {
+		Group group = new Group(name, defaultWeight);
+		allGroups.add(group);
+		return group;
+	}
+
+	/**
+	 * Return the group of the specified thread.
+	 *
+	 * @param thread the thread.
+	 * @return the group the thread belongs to.
+	 */
+	public Group getGroup(KThread thread) {
+		return getThreadState(thread).group;
+	}
+
+	/**
+	 * Move a thread that is not ready to run into a group.
+	 *
+	 * @param thread the thread.
+	 * @param group the group to join.
+	 */
+	public void setGroup(KThread thread, Group group) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		Lib.assertTrue(!state.ready);
+
+		state.group.numThreads--;
+		state.group = group;
+		group.numThreads++;
+		allGroups.add(group);
+	}
+
+	/**
+	 * Change the weight of a group.
+	 *
+	 * @param group the group.
+	 * @param weight the new weight, between 1 and <tt>weightMaximum</tt>.
+	 */
+	public void setWeight(Group group, int weight) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(weight >= 1 && weight <= weightMaximum);
+
+		boolean queued = readyQueue != null && readyQueue.groups.remove(group);
+		group.weight = weight;
+		if (queued)
+			readyQueue.groups.add(group);
+	}
+
+	public void printStats() {
+		super.printStats();
+
+		long total = finishedTicks;
+		for (Iterator<Group> i = allGroups.iterator(); i.hasNext();)
+			total += i.next().ticks;
+
+		for (Iterator<Group> i = allGroups.iterator(); i.hasNext();) {
+			Group group = i.next();
+			if (group.dispatches == 0)
+				continue;
+
+			System.out.println("Group " + group.name + ": weight "
+					+ group.weight + ", threads " + group.numThreads
+					+ ", dispatches " + group.dispatches + ", ticks "
+					+ group.ticks + " ("
+					+ (total == 0 ? 0 : group.ticks * 100 / total) + "%)");
+		}
+
+		if (finishedGroups > 0) {
+			System.out.println("Groups finished: " + finishedGroups
+					+ ", ticks " + finishedTicks + " ("
+					+ (total == 0 ? 0 : finishedTicks * 100 / total) + "%)");
+		}
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Check that a group with one thread gets as much of the processor as an
+	 * equally weighted group with four, and that both groups are dropped once
+	 * their threads finish. Only runs when the kernel is using a group
+	 * scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof GroupScheduler))
+			return;
+
+		final GroupScheduler s = (GroupScheduler) ThreadedKernel.scheduler;
+		final int[] sizes = { 1, 4 };
+		final long[] ticks = new long[sizes.length];
+		Group[] groups = new Group[sizes.length];
+		final long end = Machine.timer().getTime() + 200 * Stats.TimerTicks;
+
+		ArrayList<KThread> threads = new ArrayList<KThread>();
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int g = 0; g < sizes.length; g++) {
+			final int which = g;
+			Group group = groups[g] = s.newGroup("test" + g);
+
+			for (int i = 0; i < sizes[g]; i++) {
+				KThread thread = new KThread(new Runnable() {
+					public void run() {
+						// each iteration runs for one kernel tick
+						while (Machine.timer().getTime() < end) {
+							Machine.interrupt().disable();
+							Machine.interrupt().enable();
+							ticks[which] += Stats.KernelTick;
+						}
+					}
+				}).setName("group" + g + "." + i);
+
+				s.setGroup(thread, group);
+				threads.add(thread);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		for (Iterator<KThread> i = threads.iterator(); i.hasNext();)
+			i.next().fork();
+		for (Iterator<KThread> i = threads.iterator(); i.hasNext();)
+			i.next().join();
+
+		double ratio = (double) ticks[1] / ticks[0];
+		System.out.println("GroupScheduler: " + sizes[0] + " thread vs "
+				+ sizes[1] + " threads at equal weight got ticks " + ticks[0]
+				+ ":" + ticks[1] + " (ratio " + ratio + ")");
+		Lib.assertTrue(Math.abs(ratio - 1) < 0.1,
+				"groups not sharing by weight");
+
+		for (int g = 0; g < groups.length; g++) {
+			Lib.assertTrue(groups[g].numThreads == 0
+					&& !s.allGroups.contains(groups[g]),
+					"finished group not dropped");
+		}
+	}
+
+	/**
+	 * A group of threads that shares one weight.
+	 */
+	public class Group implements Comparable<Group> {
+		Group(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+			this.id = groupCount++;
+		}
+
+		public int compareTo(Group other) {
+			if (pass != other.pass)
+				return (pass < other.pass) ? -1 : 1;
+			if (id != other.id)
+				return (id < other.id) ? -1 : 1;
+
+			return 0;
+		}
+
+		/**
+		 * Return the name of this group.
+		 *
+		 * @return the name of this group.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public String toString() {
+			return name;
+		}
+
+		private String name;
+
+		private int weight;
+
+		private int id;
+
+		private long pass = 0;
+
+		private ArrayDeque<KThread> ready = new ArrayDeque<KThread>();
+
+		private int numThreads = 0;
+
+		private long ticks = 0, dispatches = 0;
+	}
+
+	/**
+	 * The ready queue: the groups with ready threads, ordered by pass, each
+	 * with its own FIFO queue.
+	 */
+	private class GroupQueue extends ThreadQueue {
+		/**
+		 * Add a thread to its group's queue. If the thread is the current
+		 * thread, it is yielding and its group is charged for the time it ran.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Group group = state.group;
+
+			if (state == running) {
+				charge(state);
+				running = null;
+			}
+
+			if (group.ready.isEmpty() && !groups.contains(group)) {
+				group.pass = Math.max(group.pass, minPass());
+				groups.add(group);
+			}
+
+			group.ready.add(thread);
+			state.ready = true;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the previous thread blocked or finished rather than yielding
+			if (running != null) {
+				charge(running);
+				if (running.thread.isFinished())
+					retire(running);
+			}
+
+			running = null;
+			if (groups.isEmpty())
+				return null;
+
+			Group group = groups.first();
+			KThread thread = group.ready.removeFirst();
+			if (group.ready.isEmpty())
+				groups.remove(group);
+
+			running = getThreadState(thread);
+			running.ready = false;
+			running.dispatchTime = Machine.timer().getTime();
+			group.dispatches++;
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			running = getThreadState(thread);
+			running.dispatchTime = Machine.timer().getTime();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<Group> i = groups.iterator(); i.hasNext();) {
+				Group group = i.next();
+				System.out.print("[" + group + "] ");
+				for (Iterator<KThread> j = group.ready.iterator(); j.hasNext();)
+					System.out.print(j.next() + " ");
+			}
+		}
+
+		/**
+		 * Charge a thread's group for the ticks since the thread was
+		 * dispatched.
+		 */
+		private void charge(ThreadState state) {
+			Group group = state.group;
+			long ran = Machine.timer().getTime() - state.dispatchTime;
+
+			boolean queued = groups.remove(group);
+			group.pass += ran * stride1 / group.weight;
+			group.ticks += ran;
+			if (queued)
+				groups.add(group);
+
+			state.dispatchTime = Machine.timer().getTime();
+		}
+
+		/**
+		 * Take a finished thread out of its group, and drop the group if that
+		 * was its last thread.
+		 */
+		private void retire(ThreadState state) {
+			Group group = state.group;
+			group.numThreads--;
+
+			if (group.numThreads == 0 && group != kernelGroup
+					&& group.ready.isEmpty()) {
+				allGroups.remove(group);
+				finishedGroups++;
+				finishedTicks += group.ticks;
+				group.ticks = 0;
+			}
+		}
+
+		/**
+		 * Return the smallest pass of the groups that are ready, or of the
+		 * group that is running if none are.
+		 */
+		private long minPass() {
+			if (!groups.isEmpty())
+				return groups.first().pass;
+			if (running != null)
+				return running.group.pass;
+
+			return 0;
+		}
+
+		private TreeSet<Group> groups = new TreeSet<Group>();
+
+		/** The thread most recently returned by <tt>nextThread()</tt>. */
+		private ThreadState running = null;
+	}
+
+	/**
+	 * The scheduling state of a thread: its group.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> in the kernel group.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		ThreadState(KThread thread) {
+			this.thread = thread;
+			this.group = kernelGroup;
+			group.numThreads++;
+		}
+
+		KThread thread;
+
+		Group group;
+
+		boolean ready = false;
+
+		long dispatchTime = 0;
+	}
+
+	/** The largest weight a group can have. */
+	public static final int weightMaximum = 1 << 16;
+
+	/** The pass advance of one tick at weight 1. */
+	private static final long stride1 = 1 << 20;
+
+	private int defaultWeight;
+
+	private Group kernelGroup;
+
+	/** The groups that still have threads, in order of creation. */
+	private LinkedHashSet<Group> allGroups = new LinkedHashSet<Group>();
+
+	private long finishedGroups = 0, finishedTicks = 0;
+
+	private int groupCount = 0;
+
+	private GroupQueue readyQueue = null;
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+}
@@ -58,7 +58,9 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = TracedThreadQueue.wrap(
+					ThreadedKernel.scheduler.newReadyQueue(),
+					TracedThreadQueue.readyTag);
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -271,6 +273,10 @@ public class KThread {
 		if (currentThread.status != statusFinished)
 			currentThread.status = statusBlocked;
 
+		// a thread that blocks is not CPU-bound; start it over at the base
+		// time slice
+		currentThread.timeSlice = 0;
+
 		runNextThread();
 	}
 
@@ -285,8 +291,10 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReady++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -325,8 +333,16 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// with nothing else to run, wake sleepers as soon as due
+					if (ThreadedKernel.alarm != null) {
+						Machine.interrupt().disable();
+						ThreadedKernel.alarm.wakeDue();
+						Machine.interrupt().enable();
+					}
+
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -344,6 +360,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReady--;
 
 		nextThread.run();
 	}
@@ -377,6 +395,9 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (this != currentThread)
+			numSwitches++;
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -398,6 +419,7 @@ public class KThread {
 		Machine.autoGrader().runningThread(this);
 
 		status = statusRunning;
+		dispatchTime = Machine.timer().getTime();
 
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
@@ -415,6 +437,46 @@ public class KThread {
 		Lib.assertTrue(this == currentThread);
 	}
 
+	/**
+	 * Return <tt>true</tt> if no thread other than the current one is on the
+	 * ready queue.
+	 *
+	 * @return <tt>true</tt> if the ready queue is empty.
+	 */
+	static boolean readyQueueEmpty() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numReady == 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this is the idle thread.
+	 *
+	 * @return <tt>true</tt> if this is the idle thread.
+	 */
+	boolean isIdleThread() {
+		return this == idleThread;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread has called <tt>finish()</tt>.
+	 *
+	 * @return <tt>true</tt> if this thread has finished.
+	 */
+	boolean isFinished() {
+		return status == statusFinished;
+	}
+
+	/**
+	 * Return the number of times the processor has been switched from one
+	 * thread to another.
+	 *
+	 * @return the number of context switches.
+	 */
+	public static long getNumSwitches() {
+		return numSwitches;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(int which) {
 			this.which = which;
@@ -537,6 +599,29 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads on the ready queue. */
+	private static int numReady = 0;
+
+	private static long numSwitches = 0;
+
+	/**
+	 * The time slice set for this thread by <tt>Scheduler.setQuantum()</tt>,
+	 * or 0 to use the scheduler's.
+	 */
+	long quantum = 0;
+
+	/** The adaptive time slice of this thread, or 0 for the base slice. */
+	long timeSlice = 0;
+
+	/** The time at which this thread last started running. */
+	long dispatchTime = 0;
+
+	/** The <tt>WaitList</tt> this thread is waiting in, if any. */
+	WaitList waitList = null;
+
+	/** This thread's neighbors in <tt>waitList</tt>. */
+	KThread waitPrev = null, waitNext = null;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -23,6 +23,18 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(null);
+	}
+
+	/**
+	 * Allocate a new lock with a name. The lock will initially be
+	 * <i>free</i>. The name identifies the lock when lock profiling
+	 * (<tt>Lock.profile</tt>) is enabled.
+	 * 
+	 * @param name the name of the lock.
+	 */
+	public Lock(String name) {
+		profile = LockProfile.create("lock", name);
 	}
 
 	/**
@@ -36,12 +48,19 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long waitStart = Machine.timer().getTime();
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+			if (profile != null)
+				profile.acquired(waitStart);
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			if (profile != null) {
+				profile.acquired(-1);
+				profile.busy();
+			}
 		}
 
 		Lib.assertTrue(lockHolder == thread);
@@ -49,6 +68,51 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, giving up after <i>ticks</i> ticks. The
+	 * current thread must not already hold this lock.
+	 * 
+	 * @param ticks the most ticks to wait. If not positive, only acquire the
+	 * lock if it is free.
+	 * @return <tt>true</tt> if the lock was acquired, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean tryAcquire(long ticks) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		boolean acquired = true;
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+			if (profile != null) {
+				profile.acquired(-1);
+				profile.busy();
+			}
+		}
+		else if (ticks <= 0) {
+			acquired = false;
+		}
+		else {
+			long waitStart = Machine.timer().getTime();
+			waitQueue.waitForAccess(thread);
+			acquired = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+			if (profile != null) {
+				if (acquired)
+					profile.acquired(waitStart);
+				else
+					profile.timedOut(waitStart);
+			}
+		}
+
+		Lib.assertTrue(acquired == (lockHolder == thread));
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,8 +121,14 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		if (profile != null)
+			profile.idle();
+
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			if (profile != null)
+				profile.busy();
 			lockHolder.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -74,6 +144,10 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
-	private ThreadQueue waitQueue = ThreadedKernel.scheduler
-			.newThreadQueue(true);
+	/** Contention statistics, or <tt>null</tt> if profiling is off. */
+	private LockProfile profile;
+
+	private ThreadQueue waitQueue = TracedThreadQueue.wrap(
+			ThreadedKernel.scheduler.newThreadQueue(true),
+			TracedThreadQueue.lockTag);
 }
@@ -0,0 +1,168 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Contention statistics for one lock: how often it was acquired, how often an
+ * acquirer had to wait, how long the waits were, and how long the lock was
+ * held. Waits are measured from the moment a thread blocks on the lock to the
+ * moment it runs again holding it. A <tt>ReadWriteLock</tt> counts as held
+ * while any thread holds it.
+ *
+ * <p>
+ * Profiling is turned on by setting <tt>Lock.profile</tt> to <tt>true</tt> in
+ * <tt>nachos.conf</tt>. When it is off, <tt>create()</tt> returns
+ * <tt>null</tt> and locks only test for it. The profiles of all locks, worst
+ * total wait first, are printed when the kernel terminates.
+ */
+class LockProfile {
+	/**
+	 * Allocate a profile for a new lock, if profiling is enabled.
+	 *
+	 * @param kind the kind of lock, used for unnamed locks.
+	 * @param name the name of the lock, or <tt>null</tt>.
+	 * @return a new profile, or <tt>null</tt> if profiling is off.
+	 */
+	static LockProfile create(String kind, String name) {
+		if (!enabled())
+			return null;
+
+		LockProfile profile = new LockProfile(name != null ? name : kind + "#"
+				+ unnamedCount++);
+		profiles.add(profile);
+		return profile;
+	}
+
+	/**
+	 * Return <tt>true</tt> if lock profiling is enabled.
+	 *
+	 * @return <tt>true</tt> if <tt>Lock.profile</tt> is set.
+	 */
+	static boolean enabled() {
+		if (enabled == null)
+			enabled = Boolean.valueOf(Config.getBoolean("Lock.profile", false));
+
+		return enabled.booleanValue();
+	}
+
+	private LockProfile(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Record an acquire. Interrupts must be disabled.
+	 *
+	 * @param waitStart the tick at which the thread blocked, or -1 if it did
+	 * not have to wait.
+	 */
+	void acquired(long waitStart) {
+		acquires++;
+		if (waitStart >= 0)
+			waited(waitStart);
+	}
+
+	/**
+	 * Record a wait that ended without the lock.
+	 *
+	 * @param waitStart the tick at which the thread blocked.
+	 */
+	void timedOut(long waitStart) {
+		timeouts++;
+		waited(waitStart);
+	}
+
+	/**
+	 * Note that the lock has become held.
+	 */
+	void busy() {
+		heldSince = Machine.timer().getTime();
+	}
+
+	/**
+	 * Note that the lock is no longer held, and add the time it was held.
+	 */
+	void idle() {
+		long held = Machine.timer().getTime() - heldSince;
+
+		holds++;
+		totalHold += held;
+		maxHold = Math.max(maxHold, held);
+	}
+
+	private void waited(long waitStart) {
+		long ticks = Machine.timer().getTime() - waitStart;
+
+		contended++;
+		totalWait += ticks;
+		maxWait = Math.max(maxWait, ticks);
+	}
+
+	/**
+	 * Print the profiles of all locks that were used, worst total wait first.
+	 * Does nothing if profiling is off.
+	 */
+	static void printStats() {
+		if (!enabled())
+			return;
+
+		ArrayList<LockProfile> used = new ArrayList<LockProfile>();
+		for (Iterator<LockProfile> i = profiles.iterator(); i.hasNext();) {
+			LockProfile profile = i.next();
+			if (profile.acquires > 0 || profile.timeouts > 0)
+				used.add(profile);
+		}
+
+		Collections.sort(used, new Comparator<LockProfile>() {
+			public int compare(LockProfile a, LockProfile b) {
+				if (a.totalWait != b.totalWait)
+					return (a.totalWait > b.totalWait) ? -1 : 1;
+
+				return (a.acquires > b.acquires) ? -1
+						: (a.acquires < b.acquires) ? 1 : 0;
+			}
+		});
+
+		System.out.println("Lock profile: " + used.size() + " of "
+				+ profiles.size() + " locks used");
+
+		for (int i = 0; i < used.size() && i < maxPrinted; i++)
+			System.out.println("Lock " + used.get(i));
+
+		if (used.size() > maxPrinted)
+			System.out.println("Lock profile: " + (used.size() - maxPrinted)
+					+ " more locks not shown");
+	}
+
+	public String toString() {
+		long percent = (acquires == 0) ? 0 : contended * 100 / acquires;
+
+		return name + ": " + acquires + " acquires, " + contended
+				+ " contended (" + percent + "%), " + timeouts
+				+ " timeouts; wait total " + totalWait + ", max " + maxWait
+				+ " ticks; hold avg " + (holds == 0 ? 0 : totalHold / holds)
+				+ ", max " + maxHold + " ticks";
+	}
+
+	private String name;
+
+	private long acquires = 0, contended = 0, timeouts = 0;
+
+	private long totalWait = 0, maxWait = 0;
+
+	private long holds = 0, totalHold = 0, maxHold = 0, heldSince = 0;
+
+	/** The most locks to print at termination. */
+	private static final int maxPrinted = 20;
+
+	private static Boolean enabled = null;
+
+	private static int unnamedCount = 0;
+
+	private static ArrayList<LockProfile> profiles =
+			new ArrayList<LockProfile>();
+}
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -25,12 +21,21 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick (binary
+ * indexed) tree, so drawing a winner and changing a waiter's tickets are both
+ * O(log n). The largest number of tickets a single thread may be given is set
+ * by the <tt>LotteryScheduler.maxTickets</tt> key in <tt>nachos.conf</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
 	 * Allocate a new lottery scheduler.
 	 */
 	public LotteryScheduler() {
+		maxTickets = Config.getInteger("LotteryScheduler.maxTickets",
+				Integer.MAX_VALUE);
+		Lib.assertTrue(maxTickets >= ticketsMinimum);
 	}
 
 	/**
@@ -41,7 +46,443 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum && priority <= maxTickets);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == maxTickets)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		distributionTest();
+		transferTest();
+		stressTest(1000);
+		if (ThreadedKernel.benchmarks())
+			stressTest(4000);
+	}
+
+	/**
+	 * Hold many lotteries among four threads with 1, 2, 3 and 4 tickets and
+	 * check that each thread wins roughly in proportion to its tickets.
+	 */
+	private static void distributionTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler s = new LotteryScheduler();
+		ThreadQueue queue = s.newThreadQueue(false);
+		KThread[] threads = new KThread[4];
+		int[] wins = new int[threads.length];
+		int draws = 10000;
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("lottery" + i);
+			s.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int i = 0; i < draws; i++) {
+			KThread winner = queue.nextThread();
+			wins[s.getPriority(winner) - 1]++;
+			queue.waitForAccess(winner);
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			double expected = draws * (i + 1) / 10.0;
+			Lib.assertTrue(Math.abs(wins[i] - expected) < expected * 0.1,
+					"lottery winners not proportional to tickets");
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check that waiters add their tickets to the holder, through a chain of
+	 * two queues, and that the tickets are returned when access passes on.
+	 */
+	private static void transferTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler s = new LotteryScheduler();
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		KThread holder1 = new KThread().setName("holder1");
+		KThread holder2 = new KThread().setName("holder2");
+		KThread waiter1 = new KThread().setName("waiter1");
+		KThread waiter2 = new KThread().setName("waiter2");
+
+		s.setPriority(waiter1, 5);
+		s.setPriority(waiter2, 10);
+
+		lock1.acquire(holder1);
+		lock2.acquire(holder2);
+		lock2.waitForAccess(holder1);
+		lock1.waitForAccess(waiter1);
+		lock1.waitForAccess(waiter2);
+
+		Lib.assertTrue(s.getEffectivePriority(holder1) == 16);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == 17);
+
+		s.setPriority(waiter2, 20);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == 27);
+
+		KThread next = lock1.nextThread();
+		KThread other = (next == waiter1) ? waiter2 : waiter1;
+		Lib.assertTrue(s.getEffectivePriority(holder1) == 1);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == 2);
+		Lib.assertTrue(s.getEffectivePriority(next) == s.getPriority(next)
+				+ s.getPriority(other));
+
+		Lib.assertTrue(lock1.nextThread() == other);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(s.getEffectivePriority(other) == s.getPriority(other));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check the queue operations with many waiting threads, and print their
+	 * cost if benchmarks are enabled.
+	 * 
+	 * @param numThreads the number of waiting threads.
+	 */
+	private static void stressTest(int numThreads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler s = new LotteryScheduler();
+		ThreadQueue lock = s.newThreadQueue(true);
+		KThread holder = new KThread().setName("holder");
+		KThread[] waiters = new KThread[numThreads];
+
+		lock.acquire(holder);
+
+		for (int i = 0; i < numThreads; i++) {
+			waiters[i] = new KThread().setName("stress" + i);
+			s.setPriority(waiters[i], 1 + Lib.random(100));
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			lock.waitForAccess(waiters[i]);
+
+		long t1 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			s.setPriority(waiters[Lib.random(numThreads)], 1 + Lib.random(100));
+
+		long t2 = System.nanoTime();
+		long total = 1;
+		for (int i = 0; i < numThreads; i++)
+			total += s.getPriority(waiters[i]);
+		Lib.assertTrue(s.getEffectivePriority(holder) == total);
+
+		long t3 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			Lib.assertTrue(lock.nextThread() != null);
+		long t4 = System.nanoTime();
+
+		Lib.assertTrue(lock.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println("LotteryScheduler stress (" + numThreads
+				+ " threads): waitForAccess " + (t1 - t0) / numThreads
+				+ " ns/op, setPriority " + (t2 - t1) / numThreads
+				+ " ns/op, nextThread " + (t4 - t3) / numThreads + " ns/op");
+	}
+
+	/**
+	 * The minimum number of tickets a thread can have.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets a thread can have, from
+	 * <tt>LotteryScheduler.maxTickets</tt>.
+	 */
+	private int maxTickets;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot. The tickets of the slots are kept
+	 * in a Fenwick tree, whose prefix sums let <tt>pickNextThread()</tt> map
+	 * a random ticket to its owner with a single O(log n) descent. Freed slots
+	 * are reused, and the tree doubles in size when it runs out of slots.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Draw a winning ticket and return the thread holding it.
+		 * 
+		 * @return the winner, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long ticket = (long) (Lib.random() * totalTickets);
+			if (ticket >= totalTickets)
+				ticket = totalTickets - 1;
+
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				int next = index + step;
+				if (next <= slots.length && tree[next] <= ticket) {
+					index = next;
+					ticket -= tree[next];
+				}
+			}
+
+			return slots[index];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		protected void add(ThreadState state) {
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (numSlots == slots.length)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = state;
+			state.queueIndex = slot;
+			size++;
+
+			setWeight(slot, ((LotteryThreadState) state).effectiveTickets);
+			updateDonation();
+		}
+
+		protected void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int slot = state.queueIndex;
+			setWeight(slot, 0);
+			slots[slot] = null;
+			freeSlots[numFree++] = slot;
+			size--;
+
+			state.queueIndex = -1;
+			state.waitingOn = null;
+		}
+
+		protected void update(ThreadState state) {
+			setWeight(state.queueIndex,
+					((LotteryThreadState) state).effectiveTickets);
+			updateDonation();
+		}
+
+		protected void setHolder(ThreadState state) {
+			if (!transferPriority) {
+				holder = state;
+				return;
+			}
+
+			if (holder != null)
+				((LotteryThreadState) holder).ticketsChanged(-donatedTickets);
+
+			holder = state;
+			donatedTickets = totalTickets;
+
+			if (holder != null)
+				((LotteryThreadState) holder).ticketsChanged(donatedTickets);
+		}
+
+		protected void updateDonation() {
+			if (!transferPriority || holder == null
+					|| donatedTickets == totalTickets)
+				return;
+
+			long delta = totalTickets - donatedTickets;
+			donatedTickets = totalTickets;
+			((LotteryThreadState) holder).ticketsChanged(delta);
+		}
+
+		private void setWeight(int slot, long newWeight) {
+			long delta = newWeight - weights[slot];
+			if (delta == 0)
+				return;
+
+			weights[slot] = newWeight;
+			totalTickets += delta;
+
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		private void grow() {
+			int capacity = slots.length * 2;
+
+			ThreadState[] newSlots = new ThreadState[capacity];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+			long[] newWeights = new long[capacity];
+			System.arraycopy(weights, 0, newWeights, 0, weights.length);
+			int[] newFree = new int[capacity];
+			System.arraycopy(freeSlots, 0, newFree, 0, numFree);
+
+			// rebuild the tree bottom-up in linear time
+			long[] newTree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				newTree[i] += newWeights[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					newTree[parent] += newTree[i];
+			}
+
+			slots = newSlots;
+			weights = newWeights;
+			freeSlots = newFree;
+			tree = newTree;
+		}
+
+		/** The tickets currently donated to <tt>holder</tt>. */
+		private long donatedTickets = 0;
+
+		private long totalTickets = 0;
+
+		private int size = 0;
+
+		/** The number of slots ever used; slots past this are untouched. */
+		private int numSlots = 0;
+
+		private ThreadState[] slots = new ThreadState[8];
+
+		private long[] weights = new long[8];
+
+		/** Fenwick tree over <tt>weights</tt>, indexed from 1. */
+		private long[] tree = new long[9];
+
+		private int[] freeSlots = new int[8];
+
+		private int numFree = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The priority
+	 * of the thread is its own number of tickets; its effective tickets also
+	 * include everything donated by the queues it holds.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective tickets of the associated thread, limited to
+		 * <tt>Integer.MAX_VALUE</tt>.
+		 * 
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, Integer.MAX_VALUE);
+		}
+
+		protected void updateEffectivePriority() {
+			long newTickets = priority + donatedTickets;
+			if (newTickets == effectiveTickets)
+				return;
+
+			effectiveTickets = newTickets;
+
+			if (waitingOn != null)
+				waitingOn.update(this);
+		}
+
+		/**
+		 * Called when the tickets donated by the queues this thread holds
+		 * change.
+		 * 
+		 * @param delta the change in donated tickets.
+		 */
+		protected void ticketsChanged(long delta) {
+			donatedTickets += delta;
+			updateEffectivePriority();
+		}
+
+		/*
+		 * These are left without initializers: the superclass constructor
+		 * sets the initial tickets before initializers in this class run.
+		 */
+
+		/** The tickets donated by held queues. */
+		private long donatedTickets;
+
+		/** The thread's own tickets plus <tt>donatedTickets</tt>. */
+		private long effectiveTickets;
 	}
 }
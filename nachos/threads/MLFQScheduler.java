@@ -0,0 +1,458 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * The ready queue is split into a number of levels, each a FIFO queue. The
+ * next thread to run is always taken from the highest non-empty level. Every
+ * level has a time allotment (its quantum), and lower levels have longer
+ * quanta. A thread's time slice is whatever is left of its level's allotment,
+ * so a thread on a lower level runs longer before the timer preempts it. A
+ * thread that uses up the allotment of its level, across however many time
+ * slices, is demoted one level. A thread that blocks (on a lock,
+ * semaphore, condition variable, alarm or join) is promoted one level when it
+ * is woken, so interactive threads stay near the top. On a timer interrupt,
+ * a thread on a lower level than a ready thread is preempted at once rather
+ * than at the end of its longer slice. Every
+ * <tt>boostInterval</tt> ticks all threads are moved back to the top level,
+ * so CPU-bound threads cannot starve.
+ *
+ * <p>
+ * Only the processor is scheduled this way. Other thread queues (locks,
+ * semaphores, and so on) are plain FIFO queues.
+ *
+ * <p>
+ * The scheduler is configured with these <tt>nachos.conf</tt> keys:
+ * <tt>MLFQScheduler.levels</tt> (default 3), <tt>MLFQScheduler.quantum</tt>,
+ * the allotment of the top level in ticks (default <tt>Stats.TimerTicks</tt>;
+ * each lower level doubles it), and <tt>MLFQScheduler.boostInterval</tt> in
+ * ticks (default 50 timer periods).
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		Lib.assertTrue(numLevels > 0);
+
+		quanta = new long[numLevels];
+		quanta[0] = Config.getInteger("MLFQScheduler.quantum",
+				Stats.TimerTicks);
+		Lib.assertTrue(quanta[0] > 0);
+		for (int i = 1; i < numLevels; i++)
+			quanta[i] = quanta[i - 1] * 2;
+
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				Stats.TimerTicks * 50);
+		Lib.assertTrue(boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the multi-level ready queue.
+	 *
+	 * @return a new multi-level ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new FeedbackQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Preempt the current thread if a thread on a higher level is ready, or
+	 * else once it has used up its time slice.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = KThread.currentThread();
+		if (readyQueue != null && !thread.isIdleThread()
+				&& readyQueue.outranks(thread))
+			return true;
+
+		return super.shouldPreempt();
+	}
+
+	/**
+	 * Return the time slice of the specified thread: the quantum set for it
+	 * with <tt>setQuantum()</tt>, or else what is left of the allotment of
+	 * its level. The adaptive quantum does not apply.
+	 *
+	 * @param thread the thread.
+	 * @return the time slice of the thread, in ticks.
+	 */
+	public long getTimeSlice(KThread thread) {
+		if (thread.quantum > 0)
+			return thread.quantum;
+
+		ThreadState state = getThreadState(thread);
+		return quanta[state.level] - state.used;
+	}
+
+	/**
+	 * Return the level of the specified thread; 0 is the highest level.
+	 *
+	 * @param thread the thread.
+	 * @return the level of the thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).level;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Check that each level's time slice is its allotment, that lower levels
+	 * get longer slices, and that a quantum set for a thread overrides it.
+	 */
+	private static void sliceTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		MLFQScheduler s = new MLFQScheduler();
+		KThread thread = new KThread().setName("slice");
+		ThreadState state = s.getThreadState(thread);
+
+		long last = 0;
+		for (int level = 0; level < s.numLevels; level++) {
+			state.level = level;
+			Lib.assertTrue(s.getTimeSlice(thread) == s.quanta[level]);
+			Lib.assertTrue(s.getTimeSlice(thread) > last);
+			last = s.getTimeSlice(thread);
+		}
+
+		state.used = s.quanta[state.level] / 2;
+		Lib.assertTrue(s.getTimeSlice(thread) == s.quanta[state.level]
+				- state.used);
+
+		s.setQuantum(thread, 123);
+		Lib.assertTrue(s.getTimeSlice(thread) == 123);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check that a ready thread on a higher level outranks the running
+	 * thread, and that a ready thread on the same level does not.
+	 */
+	private static void preemptTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		MLFQScheduler s = new MLFQScheduler();
+		FeedbackQueue queue = (FeedbackQueue) s.newReadyQueue();
+		KThread running = new KThread().setName("running");
+		s.getThreadState(running).level = 1;
+
+		KThread woken = new KThread().setName("woken");
+		s.getThreadState(woken).level = 1;
+		queue.waitForAccess(woken);
+		Lib.assertTrue(s.getThreadState(woken).level == 0);
+		Lib.assertTrue(queue.outranks(running));
+
+		s.getThreadState(running).level = 0;
+		Lib.assertTrue(!queue.outranks(running));
+
+		Lib.assertTrue(queue.nextThread() == woken);
+		s.getThreadState(running).level = 1;
+		Lib.assertTrue(!queue.outranks(running));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if this module is working. The load benchmark runs only if
+	 * benchmarks are enabled.
+	 */
+	public static void selfTest() {
+		sliceTest();
+		preemptTest();
+
+		if (ThreadedKernel.benchmarks())
+			benchmark();
+	}
+
+	/**
+	 * Run a mix of I/O-bound threads, which sleep on the alarm and do a short
+	 * burst of work when they wake, and CPU-bound threads, which never block.
+	 * Report the response time of the I/O-bound threads (the delay between
+	 * the alarm deadline and the thread actually running) next to the
+	 * throughput of the CPU-bound threads. Runs under whatever scheduler the
+	 * kernel is configured with, so the numbers can be compared across
+	 * schedulers.
+	 */
+	private static void benchmark() {
+		final int numCPU = 3, numIO = 2, rounds = 20;
+		final long sleepTicks = 2000;
+		final long[] cpuWork = new long[numCPU];
+		final long[] ioResponse = new long[numIO];
+		final long[] ioWorst = new long[numIO];
+		final boolean[] stop = new boolean[1];
+
+		KThread[] cpu = new KThread[numCPU];
+		for (int i = 0; i < numCPU; i++) {
+			final int which = i;
+			cpu[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!stop[0]) {
+						// each enable advances simulated time by a kernel tick
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+						cpuWork[which]++;
+					}
+				}
+			}).setName("cpu" + i);
+		}
+
+		KThread[] io = new KThread[numIO];
+		for (int i = 0; i < numIO; i++) {
+			final int which = i;
+			io[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int r = 0; r < rounds; r++) {
+						long due = Machine.timer().getTime() + sleepTicks;
+						ThreadedKernel.alarm.waitUntil(sleepTicks);
+						long late = Machine.timer().getTime() - due;
+						ioResponse[which] += late;
+						ioWorst[which] = Math.max(ioWorst[which], late);
+
+						for (int j = 0; j < 5; j++) {
+							Machine.interrupt().disable();
+							Machine.interrupt().enable();
+						}
+					}
+				}
+			}).setName("io" + i);
+		}
+
+		long start = Machine.timer().getTime();
+		for (int i = 0; i < numCPU; i++)
+			cpu[i].fork();
+		for (int i = 0; i < numIO; i++)
+			io[i].fork();
+
+		for (int i = 0; i < numIO; i++)
+			io[i].join();
+		stop[0] = true;
+		for (int i = 0; i < numCPU; i++)
+			cpu[i].join();
+		long elapsed = Machine.timer().getTime() - start;
+
+		long totalWork = 0, totalResponse = 0, worst = 0;
+		for (int i = 0; i < numCPU; i++)
+			totalWork += cpuWork[i];
+		for (int i = 0; i < numIO; i++) {
+			totalResponse += ioResponse[i];
+			worst = Math.max(worst, ioWorst[i]);
+		}
+
+		System.out.println("MLFQ benchmark ("
+				+ ThreadedKernel.scheduler.getClass().getName() + "): io "
+				+ "response avg " + totalResponse / (numIO * rounds)
+				+ " ticks, max " + worst + " ticks; cpu throughput "
+				+ (totalWork * 1000 / elapsed) + " iterations per 1000 ticks");
+	}
+
+	/**
+	 * Move every thread back to the top level. Threads on the ready queue are
+	 * moved at once; other threads pick up the boost lazily through
+	 * <tt>boostCount</tt>.
+	 *
+	 * @param queue the ready queue.
+	 */
+	private void boost(FeedbackQueue queue) {
+		boostCount++;
+		lastBoost = Machine.timer().getTime();
+
+		for (int i = 1; i < numLevels; i++) {
+			for (Iterator<KThread> it = queue.levels[i].iterator(); it
+					.hasNext();) {
+				KThread thread = it.next();
+				getThreadState(thread).checkBoost();
+				queue.levels[0].add(thread);
+			}
+			queue.levels[i].clear();
+		}
+	}
+
+	/**
+	 * The ready queue: one FIFO queue per level.
+	 */
+	private class FeedbackQueue extends ThreadQueue {
+		@SuppressWarnings("unchecked")
+		FeedbackQueue() {
+			levels = (ArrayDeque<KThread>[]) new ArrayDeque<?>[numLevels];
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new ArrayDeque<KThread>();
+		}
+
+		/**
+		 * Add a thread to the ready queue. If the thread is the current
+		 * thread, it is yielding the processor and is charged for the time it
+		 * ran. Otherwise it was blocked (or is new), and is promoted.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			state.checkBoost();
+
+			if (thread == KThread.currentThread())
+				state.charge();
+			else
+				state.promote();
+
+			levels[state.level].add(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (Machine.timer().getTime() - lastBoost >= boostInterval)
+				boost(this);
+
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty()) {
+					KThread thread = levels[i].removeFirst();
+					getThreadState(thread).dispatch();
+					return thread;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Return <tt>true</tt> if a thread on a higher level than the
+		 * specified thread is ready.
+		 */
+		boolean outranks(KThread thread) {
+			ThreadState state = getThreadState(thread);
+			state.checkBoost();
+
+			for (int i = 0; i < state.level; i++) {
+				if (!levels[i].isEmpty())
+					return true;
+			}
+
+			return false;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).dispatch();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				System.out.print("[" + i + "] ");
+				for (Iterator<KThread> it = levels[i].iterator(); it.hasNext();)
+					System.out.print(it.next() + " ");
+			}
+		}
+
+		private ArrayDeque<KThread>[] levels;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how much of the level's
+	 * allotment it has used, and when it was last dispatched.
+	 */
+	protected class ThreadState {
+		/**
+		 * Called when the associated thread starts running.
+		 */
+		void dispatch() {
+			dispatchTime = Machine.timer().getTime();
+		}
+
+		/**
+		 * Charge the associated thread for the time since it was dispatched,
+		 * demoting it if it has used up the allotment of its level.
+		 */
+		void charge() {
+			used += Machine.timer().getTime() - dispatchTime;
+
+			if (used >= quanta[level]) {
+				if (level < numLevels - 1)
+					level++;
+				used = 0;
+			}
+		}
+
+		/**
+		 * Move the associated thread up a level because it blocked before
+		 * using up its allotment.
+		 */
+		void promote() {
+			if (level > 0)
+				level--;
+			used = 0;
+		}
+
+		/**
+		 * Apply any boost that happened since this state was last looked at.
+		 */
+		void checkBoost() {
+			if (boosted != boostCount) {
+				boosted = boostCount;
+				level = 0;
+				used = 0;
+			}
+		}
+
+		int level = 0;
+
+		long used = 0;
+
+		long dispatchTime = 0;
+
+		int boosted = boostCount;
+	}
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+
+	private FeedbackQueue readyQueue = null;
+
+	private int numLevels;
+
+	private long[] quanta;
+
+	private long boostInterval;
+
+	private long lastBoost = 0;
+
+	private int boostCount = 0;
+}
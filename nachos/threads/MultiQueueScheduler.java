@@ -0,0 +1,347 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * A scheduler with a separate run queue for each CPU.
+ *
+ * <p>
+ * The ready queue is made up of one FIFO queue per CPU. A thread that becomes
+ * ready goes back to the queue of the CPU it last ran on (soft affinity),
+ * unless that queue is longer than the shortest queue by more than the
+ * imbalance threshold, in which case it goes to the shortest queue. A CPU
+ * takes its next thread from its own queue. If that queue is empty, it
+ * steals from the tail of the busiest queue, leaving that CPU's oldest
+ * threads in place.
+ *
+ * <p>
+ * The Nachos machine has a single processor, so the CPUs here are virtual:
+ * they take turns dispatching, one per call to <tt>nextThread()</tt>, so
+ * affinity and stealing decide the order in which threads share the one real
+ * processor rather than where they run. Each dispatch only takes from the
+ * dispatching CPU's queue, or the victim's queue when stealing.
+ *
+ * <p>
+ * The queues are not locked separately. <tt>KThread.ready()</tt> and
+ * <tt>KThread.sleep()</tt> already require interrupts disabled, and with one
+ * processor nothing else can reach a queue while they are, so a per-queue
+ * lock or a lock-free queue would guard against nothing. As for every thread
+ * queue, the methods have to be called with interrupts disabled.
+ *
+ * <p>
+ * Configured by <tt>MultiQueueScheduler.numCPUs</tt> (default 4) and
+ * <tt>MultiQueueScheduler.imbalance</tt> (default 2) in <tt>nachos.conf</tt>.
+ * Per-CPU dispatch, steal and queue-length counters are printed when the
+ * kernel terminates, with the spread between the longest and shortest queue
+ * sampled at every dispatch.
+ */
+public class MultiQueueScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-queue scheduler.
+	 */
+	public MultiQueueScheduler() {
+		numCPUs = Config.getInteger("MultiQueueScheduler.numCPUs", 4);
+		imbalance = Config.getInteger("MultiQueueScheduler.imbalance", 2);
+		Lib.assertTrue(numCPUs > 0 && imbalance >= 0);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the per-CPU ready queue.
+	 *
+	 * @return a new per-CPU ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new MultiQueue();
+		return readyQueue;
+	}
+
+	public void printStats() {
+		super.printStats();
+
+		if (readyQueue != null)
+			readyQueue.printStats();
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		affinityTest();
+		stressTest(4000);
+	}
+
+	/**
+	 * Check that a CPU dispatches the threads that last ran on it, that a
+	 * thread becoming ready returns to its CPU's queue, and that a CPU with
+	 * an empty queue steals the newest thread of the busiest queue.
+	 */
+	private static void affinityTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		MultiQueueScheduler s = new MultiQueueScheduler();
+		s.numCPUs = 4;
+		MultiQueue queue = (MultiQueue) s.newReadyQueue();
+		queue.imbalance = 10;
+
+		// one thread on CPU 0, three on CPU 3, none on CPUs 1 and 2
+		KThread a = new KThread().setName("a");
+		s.getThreadState(a).lastCPU = 0;
+		queue.waitForAccess(a);
+
+		KThread[] b = new KThread[3];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = new KThread().setName("b" + i);
+			s.getThreadState(b[i]).lastCPU = 3;
+			queue.waitForAccess(b[i]);
+		}
+		Lib.assertTrue(queue.queues[0].size() == 1
+				&& queue.queues[3].size() == 3);
+
+		// CPU 0 runs its own thread, and gets it back when it is ready again
+		queue.current = 3;
+		Lib.assertTrue(queue.nextThread() == a && queue.steals[0] == 0);
+		Lib.assertTrue(s.getThreadState(a).lastCPU == 0);
+		queue.waitForAccess(a);
+		Lib.assertTrue(queue.queues[0].peekLast() == a);
+
+		// CPUs 1 and 2 are empty, so they steal the newest threads of CPU 3
+		Lib.assertTrue(queue.nextThread() == b[2]);
+		Lib.assertTrue(queue.steals[1] == 1 && queue.stolen[3] == 1);
+		Lib.assertTrue(s.getThreadState(b[2]).lastCPU == 1);
+		Lib.assertTrue(queue.nextThread() == b[1] && queue.stolen[3] == 2);
+
+		// CPU 3 runs its oldest thread itself
+		Lib.assertTrue(queue.nextThread() == b[0] && queue.steals[3] == 0);
+
+		Lib.assertTrue(queue.nextThread() == a);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Make thousands of threads ready on a private scheduler instance, with
+	 * skewed affinity, and dispatch them all. Check that every thread comes
+	 * out exactly once, and print the cost of a dispatch if benchmarks are
+	 * enabled.
+	 *
+	 * @param numThreads the number of threads.
+	 */
+	private static void stressTest(int numThreads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		MultiQueueScheduler s = new MultiQueueScheduler();
+		MultiQueue queue = (MultiQueue) s.newReadyQueue();
+		HashSet<KThread> seen = new HashSet<KThread>();
+
+		// every thread last ran on CPU 0, so all the work starts there
+		queue.imbalance = numThreads;
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread().setName("cpu" + i);
+			s.getThreadState(thread).lastCPU = 0;
+			queue.waitForAccess(thread);
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			Lib.assertTrue(seen.add(queue.nextThread()));
+		long t1 = System.nanoTime();
+
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println("MultiQueueScheduler stress (" + numThreads
+				+ " threads, " + s.numCPUs + " CPUs): nextThread "
+				+ (t1 - t0) / numThreads + " ns/op, steals "
+				+ queue.totalSteals());
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The ready queue: one FIFO queue per CPU.
+	 */
+	private class MultiQueue extends ThreadQueue {
+		@SuppressWarnings("unchecked")
+		MultiQueue() {
+			queues = (ArrayDeque<KThread>[]) new ArrayDeque<?>[numCPUs];
+			for (int i = 0; i < numCPUs; i++)
+				queues[i] = new ArrayDeque<KThread>();
+
+			imbalance = MultiQueueScheduler.this.imbalance;
+			dispatched = new long[numCPUs];
+			steals = new long[numCPUs];
+			stolen = new long[numCPUs];
+			idle = new long[numCPUs];
+			maxLength = new int[numCPUs];
+		}
+
+		/**
+		 * Queue a thread on the CPU it last ran on, or on the shortest queue
+		 * if that CPU is too far behind.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int shortest = 0;
+			for (int i = 1; i < numCPUs; i++) {
+				if (queues[i].size() < queues[shortest].size())
+					shortest = i;
+			}
+
+			int cpu = getThreadState(thread).lastCPU;
+			if (cpu < 0
+					|| queues[cpu].size() - queues[shortest].size() > imbalance)
+				cpu = shortest;
+
+			queues[cpu].add(thread);
+			maxLength[cpu] = Math.max(maxLength[cpu], queues[cpu].size());
+		}
+
+		/**
+		 * Let the next CPU in turn pick a thread from its own queue, stealing
+		 * from the busiest queue if its own is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			current = (current + 1) % numCPUs;
+
+			int busiest = 0, shortest = 0;
+			for (int i = 1; i < numCPUs; i++) {
+				if (queues[i].size() > queues[busiest].size())
+					busiest = i;
+				if (queues[i].size() < queues[shortest].size())
+					shortest = i;
+			}
+
+			int spread = queues[busiest].size() - queues[shortest].size();
+			spreadTotal += spread;
+			maxSpread = Math.max(maxSpread, spread);
+			samples++;
+
+			KThread thread = queues[current].pollFirst();
+			if (thread == null) {
+				thread = queues[busiest].pollLast();
+				if (thread == null) {
+					idle[current]++;
+					return null;
+				}
+
+				steals[current]++;
+				stolen[busiest]++;
+			}
+
+			dispatched[current]++;
+			getThreadState(thread).lastCPU = current;
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getThreadState(thread).lastCPU = current;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numCPUs; i++) {
+				System.out.print("[cpu" + i + "] ");
+				for (Iterator<KThread> it = queues[i].iterator(); it.hasNext();)
+					System.out.print(it.next() + " ");
+			}
+		}
+
+		long totalSteals() {
+			long total = 0;
+			for (int i = 0; i < numCPUs; i++)
+				total += steals[i];
+			return total;
+		}
+
+		/**
+		 * Print per-CPU balance counters, and the average and largest
+		 * difference between the longest and shortest queue when a CPU went to
+		 * dispatch.
+		 */
+		void printStats() {
+			for (int i = 0; i < numCPUs; i++) {
+				System.out.println("CPU " + i + ": dispatched " + dispatched[i]
+						+ ", steals " + steals[i] + ", stolen " + stolen[i]
+						+ ", idle " + idle[i] + ", max queue " + maxLength[i]);
+			}
+
+			if (samples > 0) {
+				System.out.println("CPU balance: queue spread avg "
+						+ (spreadTotal * 100 / samples) / 100.0 + ", max "
+						+ maxSpread + " over " + samples + " dispatches");
+			}
+		}
+
+		private ArrayDeque<KThread>[] queues;
+
+		/** The CPU that made the last dispatch. */
+		private int current = 0;
+
+		private int imbalance;
+
+		private long[] dispatched, steals, stolen, idle;
+
+		private int[] maxLength;
+
+		/** Sum and largest longest-minus-shortest queue length at dispatch. */
+		private long spreadTotal = 0;
+
+		private int maxSpread = 0;
+
+		private long samples = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: the CPU it last ran on.
+	 */
+	protected class ThreadState {
+		int lastCPU = -1;
+	}
+
+	private int numCPUs;
+
+	private int imbalance;
+
+	private MultiQueue readyQueue = null;
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+}
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -97,6 +93,195 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		orderTest();
+		donationTest();
+		stressTest(1000);
+		if (ThreadedKernel.benchmarks())
+			stressTest(4000);
+	}
+
+	/**
+	 * Check that a queue hands out threads by priority, oldest first among
+	 * equal priorities, and that waiters donate to the queue holder through a
+	 * chain of two queues.
+	 */
+	private static void orderTest() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler s = new PriorityScheduler();
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		KThread holder1 = new KThread().setName("holder1");
+		KThread holder2 = new KThread().setName("holder2");
+		KThread[] waiters = new KThread[4];
+		int[] priorities = { 2, 5, 2, 5 };
+
+		lock1.acquire(holder1);
+		lock2.acquire(holder2);
+		lock2.waitForAccess(holder1);
+
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread().setName("waiter" + i);
+			s.setPriority(waiters[i], priorities[i]);
+			lock1.waitForAccess(waiters[i]);
+		}
+
+		Lib.assertTrue(s.getEffectivePriority(holder1) == 5);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == 5);
+
+		s.setPriority(waiters[0], priorityMaximum);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == priorityMaximum);
+
+		Lib.assertTrue(lock1.nextThread() == waiters[0]);
+		Lib.assertTrue(s.getEffectivePriority(holder1) == priorityDefault);
+		Lib.assertTrue(s.getEffectivePriority(holder2) == priorityDefault);
+		Lib.assertTrue(s.getEffectivePriority(waiters[0]) == priorityMaximum);
+
+		s.setPriority(waiters[0], priorityMinimum);
+		Lib.assertTrue(s.getEffectivePriority(waiters[0]) == 5);
+
+		Lib.assertTrue(lock1.nextThread() == waiters[1]);
+		Lib.assertTrue(lock1.nextThread() == waiters[3]);
+		Lib.assertTrue(lock1.nextThread() == waiters[2]);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(s.getEffectivePriority(waiters[2]) == 2);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check donation through a real <tt>Lock</tt>. Only runs when the kernel
+	 * is using a priority scheduler, since it relies on the ready queue
+	 * honoring priorities.
+	 */
+	private static void donationTest() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler)
+				|| ThreadedKernel.scheduler instanceof LotteryScheduler)
+			return;
+
+		final PriorityScheduler s = (PriorityScheduler) ThreadedKernel.scheduler;
+		final Lock lock = new Lock();
+		final Semaphore acquired = new Semaphore(0);
+		final Semaphore done = new Semaphore(0);
+
+		boolean intStatus = Machine.interrupt().disable();
+		int oldPriority = s.getPriority();
+		s.setPriority(priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				acquired.V();
+				done.P();
+				lock.release();
+			}
+		}).setName("low");
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("high");
+
+		intStatus = Machine.interrupt().disable();
+		s.setPriority(low, 2);
+		s.setPriority(high, 5);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		acquired.P();
+		high.fork();
+
+		intStatus = Machine.interrupt().disable();
+		s.setPriority(priorityMinimum);
+		Machine.interrupt().restore(intStatus);
+		KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		s.setPriority(priorityMaximum);
+		Lib.assertTrue(s.getEffectivePriority(low) == 5,
+				"priority not donated through lock");
+		Machine.interrupt().restore(intStatus);
+
+		done.V();
+		high.join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(s.getEffectivePriority(low) == 2);
+		s.setPriority(oldPriority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Check the queue operations with many waiting threads, and print their
+	 * cost if benchmarks are enabled. The waiters queue on a lock whose
+	 * holder is itself waiting on a second lock, so every operation also
+	 * pays for donation along the chain.
+	 * 
+	 * @param numThreads the number of waiting threads.
+	 */
+	private static void stressTest(int numThreads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler s = new PriorityScheduler();
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		KThread holder1 = new KThread().setName("holder1");
+		KThread holder2 = new KThread().setName("holder2");
+		KThread[] waiters = new KThread[numThreads];
+
+		lock1.acquire(holder1);
+		lock2.acquire(holder2);
+		lock2.waitForAccess(holder1);
+
+		for (int i = 0; i < numThreads; i++) {
+			waiters[i] = new KThread().setName("stress" + i);
+			s.setPriority(waiters[i], Lib.random(priorityMaximum + 1));
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			lock1.waitForAccess(waiters[i]);
+
+		long t1 = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			s.setPriority(waiters[Lib.random(numThreads)],
+					Lib.random(priorityMaximum + 1));
+
+		long t2 = System.nanoTime();
+		int highest = priorityDefault;
+		for (int i = 0; i < numThreads; i++)
+			highest = Math.max(highest, s.getPriority(waiters[i]));
+		Lib.assertTrue(s.getEffectivePriority(holder2) == highest);
+
+		long t3 = System.nanoTime();
+		int last = priorityMaximum + 1;
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = lock1.nextThread();
+			int priority = s.getPriority(thread);
+			Lib.assertTrue(priority <= last);
+			last = priority;
+		}
+		long t4 = System.nanoTime();
+
+		Lib.assertTrue(lock1.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println("PriorityScheduler stress (" + numThreads
+				+ " threads): waitForAccess " + (t1 - t0) / numThreads
+				+ " ns/op, setPriority " + (t2 - t1) / numThreads
+				+ " ns/op, nextThread " + (t4 - t3) / numThreads + " ns/op");
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -125,8 +310,25 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * Stamp handed to each thread as it starts waiting. Breaks ties between
+	 * threads of equal effective priority in favor of the oldest waiter.
+	 */
+	private long enqueueCount = 0;
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in an array-based binary heap ordered by
+	 * effective priority and then by the time they started waiting. Each
+	 * <tt>ThreadState</tt> remembers its position in the heap, so a waiter
+	 * whose effective priority changes is moved in O(log n) without a search.
+	 * 
+	 * <p>
+	 * If this queue transfers priority, it also records the thread that
+	 * currently has access, and the amount it donates to that thread
+	 * (<tt>donation</tt>).
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +347,35 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setHolder(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Remove a waiting thread, taking its donation away from the holder.
+		 * 
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was waiting in this queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitingOn != this)
+				return false;
+
+			remove(state);
+			updateDonation();
+			return true;
 		}
 
 		/**
@@ -156,13 +385,157 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Return the amount this queue should donate to its holder: the
+		 * highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no thread is waiting.
+		 * 
+		 * @return the donation of this queue.
+		 */
+		protected int getDonation() {
+			return (size == 0) ? priorityMinimum : heap[0].effectivePriority;
+		}
+
+		/**
+		 * Add a thread to the set of waiting threads.
+		 * 
+		 * @param state the state of the thread that is now waiting.
+		 */
+		protected void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			state.queueIndex = size++;
+			siftUp(state);
+			updateDonation();
+		}
+
+		/**
+		 * Remove a waiting thread from this queue. Does not change the
+		 * donation to the holder; the caller is responsible for that.
+		 * 
+		 * @param state the state of the waiting thread to remove.
+		 */
+		protected void remove(ThreadState state) {
+			Lib.assertTrue(state.waitingOn == this);
+
+			int index = state.queueIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				last.queueIndex = index;
+				siftUp(last);
+				siftDown(last);
+			}
+
+			state.queueIndex = -1;
+			state.waitingOn = null;
+		}
+
+		/**
+		 * Called when the effective priority of a waiting thread has changed.
+		 * 
+		 * @param state the state of the waiting thread.
+		 */
+		protected void update(ThreadState state) {
+			siftUp(state);
+			siftDown(state);
+			updateDonation();
+		}
+
+		/**
+		 * Give access to the specified thread, taking the donation of this
+		 * queue away from the previous holder.
+		 * 
+		 * @param state the new holder, or <tt>null</tt> if none.
+		 */
+		protected void setHolder(ThreadState state) {
+			if (!transferPriority) {
+				holder = state;
+				return;
+			}
+
+			if (holder != null)
+				holder.removeDonor(this);
+
+			holder = state;
+
+			if (holder != null) {
+				donation = getDonation();
+				holder.addDonor(this);
+			}
+		}
+
+		/**
+		 * Recompute the donation of this queue and pass any change on to the
+		 * holder.
+		 */
+		protected void updateDonation() {
+			if (!transferPriority || holder == null)
+				return;
+
+			int newDonation = getDonation();
+			if (newDonation != donation)
+				holder.donationChanged(this, newDonation);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+
+			return a.enqueueTime < b.enqueueTime;
+		}
+
+		private void siftUp(ThreadState state) {
+			int index = state.queueIndex;
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].queueIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.queueIndex = index;
+		}
+
+		private void siftDown(ThreadState state) {
+			int index = state.queueIndex;
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].queueIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.queueIndex = index;
 		}
 
 		/**
@@ -170,6 +543,19 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that currently has access, if any. */
+		protected ThreadState holder = null;
+
+		/** The amount currently donated to <tt>holder</tt>. */
+		protected int donation = priorityMinimum;
+
+		/** The index of this queue in the holder's donor heap. */
+		protected int holderIndex = -1;
+
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
 	}
 
 	/**
@@ -177,6 +563,14 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached and updated incrementally. The queues a
+	 * thread holds are kept in a max-heap ordered by their donation, so the
+	 * largest donation is always at the root. When the effective priority
+	 * changes, the change is pushed to the queue the thread is waiting on,
+	 * which in turn updates its own holder, and so on along the chain. The
+	 * walk stops as soon as some thread's effective priority is unchanged.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +601,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +615,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +631,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			enqueueTime = enqueueCount++;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -252,7 +649,116 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitQueue.setHolder(this);
+		}
+
+		/**
+		 * Recompute the effective priority and, if it changed, reposition
+		 * this thread in the queue it is waiting on.
+		 */
+		protected void updateEffectivePriority() {
+			int newPriority = priority;
+			if (numDonors > 0)
+				newPriority = Math.max(newPriority, donors[0].donation);
+
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			if (waitingOn != null)
+				waitingOn.update(this);
+		}
+
+		/**
+		 * Start receiving the donation of a queue this thread now holds.
+		 * 
+		 * @param donor the queue.
+		 */
+		protected void addDonor(PriorityQueue donor) {
+			if (numDonors == donors.length) {
+				PriorityQueue[] larger = new PriorityQueue[numDonors * 2];
+				System.arraycopy(donors, 0, larger, 0, numDonors);
+				donors = larger;
+			}
+
+			donor.holderIndex = numDonors++;
+			siftDonorUp(donor);
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Stop receiving the donation of a queue this thread no longer holds.
+		 * 
+		 * @param donor the queue.
+		 */
+		protected void removeDonor(PriorityQueue donor) {
+			int index = donor.holderIndex;
+			PriorityQueue last = donors[--numDonors];
+			donors[numDonors] = null;
+
+			if (last != donor) {
+				last.holderIndex = index;
+				siftDonorUp(last);
+				siftDonorDown(last);
+			}
+
+			donor.holderIndex = -1;
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the donation of a held queue changes.
+		 * 
+		 * @param donor the queue.
+		 * @param donation the new donation of the queue.
+		 */
+		protected void donationChanged(PriorityQueue donor, int donation) {
+			donor.donation = donation;
+			siftDonorUp(donor);
+			siftDonorDown(donor);
+			updateEffectivePriority();
+		}
+
+		private void siftDonorUp(PriorityQueue donor) {
+			int index = donor.holderIndex;
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (donors[parent].donation >= donor.donation)
+					break;
+
+				donors[index] = donors[parent];
+				donors[index].holderIndex = index;
+				index = parent;
+			}
+
+			donors[index] = donor;
+			donor.holderIndex = index;
+		}
+
+		private void siftDonorDown(PriorityQueue donor) {
+			int index = donor.holderIndex;
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= numDonors)
+					break;
+				if (child + 1 < numDonors
+						&& donors[child + 1].donation > donors[child].donation)
+					child++;
+				if (donors[child].donation <= donor.donation)
+					break;
+
+				donors[index] = donors[child];
+				donors[index].holderIndex = index;
+				index = child;
+			}
+
+			donors[index] = donor;
+			donor.holderIndex = index;
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +766,21 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The position of this state in <tt>waitingOn</tt>. */
+		protected int queueIndex = -1;
+
+		/** When the associated thread started waiting on <tt>waitingOn</tt>. */
+		protected long enqueueTime;
+
+		private PriorityQueue[] donors = new PriorityQueue[2];
+
+		private int numDonors = 0;
 	}
 }
@@ -0,0 +1,394 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held by any number of <i>readers</i> at
+ * once, or by a single <i>writer</i>. It is meant for structures that are
+ * read far more often than they are changed.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds the lock, then hold
+ * it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it for writing.
+ * </ul>
+ *
+ * <p>
+ * With writer preference, a reader also waits while a writer is waiting, and a
+ * released lock goes to a waiting writer before waiting readers; readers
+ * cannot starve a writer. Without it, readers join whenever no writer holds
+ * the lock, and a writer that releases the lock admits waiting readers first.
+ *
+ * <p>
+ * Readers are counted, not recorded, so holding the lock for reading
+ * allocates nothing. Waiting threads donate priority to the writer that holds
+ * the lock, as with <tt>Lock</tt>. While readers hold the lock there is no
+ * single holder, and waiting threads donate to no one.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new lock with writer preference. The lock will initially be
+	 * free.
+	 */
+	public ReadWriteLock() {
+		this(true);
+	}
+
+	/**
+	 * Allocate a new lock. The lock will initially be free.
+	 *
+	 * @param preferWriters <tt>true</tt> if waiting writers should go before
+	 * new and waiting readers.
+	 */
+	public ReadWriteLock(boolean preferWriters) {
+		this(null, preferWriters);
+	}
+
+	/**
+	 * Allocate a new lock with a name. The lock will initially be free. The
+	 * name identifies the lock when lock profiling (<tt>Lock.profile</tt>) is
+	 * enabled.
+	 *
+	 * @param name the name of the lock.
+	 * @param preferWriters <tt>true</tt> if waiting writers should go before
+	 * new and waiting readers.
+	 */
+	public ReadWriteLock(String name, boolean preferWriters) {
+		this.preferWriters = preferWriters;
+		profile = LockProfile.create("rwlock", name);
+	}
+
+	/**
+	 * Atomically wait until no writer holds this lock, and then hold it for
+	 * reading. The current thread must not hold this lock for writing.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer != null || (preferWriters && writeWaiters.waiting > 0)) {
+			long waitStart = Machine.timer().getTime();
+			readWaiters.sleep(); // counted as a reader when woken
+			if (profile != null)
+				profile.acquired(waitStart);
+		}
+		else {
+			readers++;
+			if (profile != null) {
+				profile.acquired(-1);
+				if (readers == 1)
+					profile.busy();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Give up a read hold on this lock. If it was the last one, the lock goes
+	 * to a waiting writer.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(readers > 0);
+		if (--readers == 0) {
+			if (profile != null)
+				profile.idle();
+			grant();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait until no thread holds this lock, and then hold it for
+	 * writing. The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || readers > 0) {
+			long waitStart = Machine.timer().getTime();
+			writeWaiters.sleep();
+			if (profile != null)
+				profile.acquired(waitStart);
+		}
+		else {
+			writer = thread;
+			writeWaiters.donateTo(thread);
+			readWaiters.donateTo(thread);
+			if (profile != null) {
+				profile.acquired(-1);
+				profile.busy();
+			}
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Give up the write hold on this lock, and pass the lock to waiting
+	 * threads according to the preference.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		if (profile != null)
+			profile.idle();
+		grant();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Pass a lock that has just become free to the waiting threads: every
+	 * waiting reader, or the next waiting writer.
+	 */
+	private void grant() {
+		if (readWaiters.waiting > 0
+				&& (!preferWriters || writeWaiters.waiting == 0)) {
+			KThread thread;
+			while ((thread = readWaiters.next()) != null) {
+				readers++;
+				thread.ready();
+			}
+
+			writeWaiters.donateTo(null);
+		}
+		else if (writeWaiters.waiting > 0) {
+			writer = writeWaiters.next();
+			readWaiters.donateTo(writer);
+			writer.ready();
+		}
+		else {
+			writeWaiters.donateTo(null);
+			readWaiters.donateTo(null);
+			return;
+		}
+
+		if (profile != null)
+			profile.busy();
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		donationTest();
+
+		if (ThreadedKernel.benchmarks())
+			benchmark("Lock", null);
+		benchmark("ReadWriteLock (writer preference)", new ReadWriteLock(true));
+		benchmark("ReadWriteLock (reader preference)", new ReadWriteLock(false));
+	}
+
+	/**
+	 * Check that a reader waiting on a writer donates its priority to the
+	 * writer. Only runs when the kernel is using a priority scheduler.
+	 */
+	private static void donationTest() {
+		if (!(ThreadedKernel.scheduler instanceof PriorityScheduler))
+			return;
+
+		final ReadWriteLock rw = new ReadWriteLock();
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				rw.releaseRead();
+			}
+		}).setName("reader");
+
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getEffectivePriority();
+		ThreadedKernel.scheduler.setPriority(reader,
+				PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		rw.acquireWrite();
+		reader.fork();
+		while (rw.readWaiters.waiting == 0)
+			KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority()
+				>= PriorityScheduler.priorityMaximum,
+				"reader did not donate to writer");
+		Machine.interrupt().restore(intStatus);
+
+		rw.releaseWrite();
+		reader.join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(
+				ThreadedKernel.scheduler.getEffectivePriority() == priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Run threads that read a shared table nine times for each time they
+	 * write it, holding the lock across a short sleep that stands in for a
+	 * page-in. Check that readers never overlap a writer. If benchmarks are
+	 * enabled, report the simulated time and context switches, next to the
+	 * same run with an exclusive <tt>Lock</tt>.
+	 */
+	private static void benchmark(String name, final ReadWriteLock rw) {
+		final int numThreads = 8, ops = 20;
+		final long io = 100;
+		final Lock lock = (rw == null) ? new Lock() : null;
+		final int[] inside = new int[2]; // readers, writers
+		final int[] maxReaders = new int[1];
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int op = 0; op < ops; op++) {
+						boolean write = ((op + id) % 10 == 0);
+
+						if (lock != null)
+							lock.acquire();
+						else if (write)
+							rw.acquireWrite();
+						else
+							rw.acquireRead();
+
+						inside[write ? 1 : 0]++;
+						Lib.assertTrue(inside[1] == (write ? 1 : 0)
+								&& (!write || inside[0] == 0),
+								"reader and writer inside together");
+						maxReaders[0] = Math.max(maxReaders[0], inside[0]);
+
+						ThreadedKernel.alarm.waitUntil(io);
+
+						inside[write ? 1 : 0]--;
+
+						if (lock != null)
+							lock.release();
+						else if (write)
+							rw.releaseWrite();
+						else
+							rw.releaseRead();
+					}
+				}
+			}).setName("rw" + i);
+		}
+
+		long switches = KThread.getNumSwitches();
+		long start = Machine.timer().getTime();
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		long ticks = Machine.timer().getTime() - start;
+		switches = KThread.getNumSwitches() - switches;
+
+		if (!ThreadedKernel.benchmarks())
+			return;
+
+		System.out.println(name + ": " + numThreads * ops
+				+ " read-mostly operations in " + ticks + " ticks, " + switches
+				+ " context switches, up to " + maxReaders[0]
+				+ " readers at once");
+	}
+
+	/**
+	 * The threads waiting for one kind of access, and the number of them. To
+	 * move the donation of the waiters to a new holder while threads are
+	 * waiting, the waiters are moved to a spare queue that has been given to
+	 * the new holder, since a thread queue can only be handed to a thread it
+	 * returns from <tt>nextThread()</tt> or when it is empty.
+	 */
+	private static class Waiters {
+		/**
+		 * Block the current thread until it is woken. Interrupts must be
+		 * disabled.
+		 */
+		void sleep() {
+			waiting++;
+			queue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		/**
+		 * Remove the next waiting thread, which becomes the holder of this
+		 * queue. If no thread is waiting, the queue no longer has a holder.
+		 * The caller makes the thread ready.
+		 *
+		 * @return the next waiting thread, or <tt>null</tt>.
+		 */
+		KThread next() {
+			KThread thread = queue.nextThread();
+			if (thread != null)
+				waiting--;
+
+			return thread;
+		}
+
+		/**
+		 * Make the waiting threads donate to <i>holder</i>, or to no one if it
+		 * is <tt>null</tt>.
+		 */
+		void donateTo(KThread holder) {
+			if (waiting == 0) {
+				if (holder != null)
+					queue.acquire(holder);
+				else
+					queue.nextThread();
+				return;
+			}
+
+			if (holder != null)
+				spare.acquire(holder);
+
+			KThread thread;
+			while ((thread = queue.nextThread()) != null)
+				spare.waitForAccess(thread);
+
+			ThreadQueue empty = queue;
+			queue = spare;
+			spare = empty;
+		}
+
+		private ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+		private ThreadQueue spare = ThreadedKernel.scheduler.newThreadQueue(true);
+
+		private int waiting = 0;
+	}
+
+	private boolean preferWriters;
+
+	private KThread writer = null;
+
+	private int readers = 0;
+
+	private Waiters readWaiters = new Waiters();
+
+	private Waiters writeWaiters = new Waiters();
+
+	/** Contention statistics, or <tt>null</tt> if profiling is off. */
+	private LockProfile profile;
+}
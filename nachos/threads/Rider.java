@@ -5,12 +5,29 @@ import nachos.machine.*;
 /**
  * A single rider. Each rider accesses the elevator bank through an instance of
  * <tt>RiderControls</tt>.
+ *
+ * <p>
+ * A rider boards the first elevator that opens on its floor showing the
+ * direction it wants, calling for one again whenever a car leaves without
+ * it (for example, because the car was full). For each stop it records how
+ * long it waited for a car and how long it rode.
  */
 public class Rider implements RiderInterface {
 	/**
 	 * Allocate a new rider.
 	 */
 	public Rider() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new rider that waits <i>delay</i> ticks after it starts
+	 * before calling for its first elevator.
+	 *
+	 * @param delay the ticks to wait before the first call.
+	 */
+	Rider(long delay) {
+		this.delay = delay;
 	}
 
 	/**
@@ -20,12 +37,23 @@ public class Rider implements RiderInterface {
 	 * this rider is initialized, but not until the interrupt handler is set.
 	 * The rider will start receiving events after this method returns,
 	 * potentially before <tt>run()</tt> is called.
-	 * 
+	 *
 	 * @param controls the rider's interface to the elevator bank. The rider
 	 * must not attempt to access the elevator bank in <i>any</i> other way.
 	 * @param stops an array of stops the rider should make; see below.
 	 */
 	public void initialize(RiderControls controls, int[] stops) {
+		this.controls = controls;
+		this.stops = stops;
+
+		waitTimes = new long[stops.length];
+		travelTimes = new long[stops.length];
+
+		controls.setInterruptHandler(new Runnable() {
+			public void run() {
+				eventWait.V();
+			}
+		});
 	}
 
 	/**
@@ -33,18 +61,131 @@ public class Rider implements RiderInterface {
 	 * in the constructor. The rider should stop at each of the floors in
 	 * <i>stops</i>, an array of floor numbers. The rider should <i>only</i>
 	 * make the specified stops.
-	 * 
+	 *
 	 * <p>
 	 * For example, suppose the rider uses <i>controls</i> to determine that it
 	 * is initially on floor 1, and suppose the stops array contains two
 	 * elements: { 0, 2 }. Then the rider should get on an elevator, get off on
 	 * floor 0, get on an elevator, and get off on floor 2, pushing buttons as
 	 * necessary.
-	 * 
+	 *
 	 * <p>
 	 * This method should not return, but instead should call
 	 * <tt>controls.finish()</tt> when the rider is finished.
 	 */
 	public void run() {
+		if (delay > 0)
+			ThreadedKernel.alarm.waitUntil(delay);
+
+		for (int i = 0; i < stops.length; i++) {
+			int floor = controls.getFloor();
+			Lib.assertTrue(stops[i] != floor, "rider asked to stay put");
+
+			long start = Machine.timer().getTime();
+			int elevator = board(stops[i] > floor);
+
+			long boarded = Machine.timer().getTime();
+			ride(elevator, stops[i]);
+
+			waitTimes[i] = boarded - start;
+			travelTimes[i] = Machine.timer().getTime() - boarded;
+		}
+
+		controls.finish();
+		Lib.assertNotReached();
+	}
+
+	/**
+	 * Return how long this rider waited for a car for each stop.
+	 *
+	 * @return the ticks waited for each stop.
+	 */
+	long[] getWaitTimes() {
+		return waitTimes;
+	}
+
+	/**
+	 * Return how long this rider rode to each stop.
+	 *
+	 * @return the ticks between boarding and getting off for each stop.
+	 */
+	long[] getTravelTimes() {
+		return travelTimes;
+	}
+
+	/**
+	 * Call for an elevator going up or down, and board the first one that
+	 * opens here showing that direction.
+	 *
+	 * @return the elevator boarded.
+	 */
+	private int board(boolean up) {
+		int direction = up ? dirUp : dirDown;
+		boolean called = false;
+
+		while (true) {
+			int elevator = enterAny(direction);
+			if (elevator != -1)
+				return elevator;
+
+			// the button does nothing while a car going our way is open
+			// here, so call again once the doors close
+			if (!called)
+				called = controls.pressDirectionButton(up);
+
+			RiderEvent event = getNextEvent();
+			if (event.event == RiderEvent.eventDoorsClosed)
+				called = false;
+		}
+	}
+
+	private int enterAny(int direction) {
+		int numElevators = controls.getNumElevators();
+		for (int elevator = 0; elevator < numElevators; elevator++) {
+			if (controls.getDirectionDisplay(elevator) == direction
+					&& controls.enterElevator(elevator))
+				return elevator;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Ride <i>elevator</i> to <i>floor</i> and get off. If the doors close
+	 * there before this rider gets to them, it presses the button again.
+	 */
+	private void ride(int elevator, int floor) {
+		controls.pressFloorButton(floor);
+
+		while (true) {
+			RiderEvent event = getNextEvent();
+			if (event.floor != floor)
+				continue;
+
+			if (event.event == RiderEvent.eventDoorsOpened
+					&& controls.exitElevator(floor))
+				return;
+
+			if (event.event == RiderEvent.eventDoorsClosed)
+				controls.pressFloorButton(floor);
+		}
+	}
+
+	private RiderEvent getNextEvent() {
+		RiderEvent event;
+		while ((event = controls.getNextEvent()) == null)
+			eventWait.P();
+
+		return event;
 	}
+
+	private RiderControls controls;
+
+	private int[] stops;
+
+	private long delay;
+
+	private long[] waitTimes, travelTimes;
+
+	private Semaphore eventWait = new Semaphore(0);
 }
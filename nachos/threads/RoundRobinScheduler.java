@@ -2,15 +2,16 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.Iterator;
 
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
- * with linked lists. When a thread begins waiting for access, it is appended to
- * the end of a list. The next thread to receive access is always the first
- * thread in the list. This causes access to be given on a first-come
- * first-serve basis.
+ * with linked hash sets. When a thread begins waiting for access, it is
+ * appended to the end of a set. The next thread to receive access is always
+ * the first thread in the set. This causes access to be given on a first-come
+ * first-serve basis. A thread that stops waiting can be removed from anywhere
+ * in the set in constant time.
  */
 public class RoundRobinScheduler extends Scheduler {
 	/**
@@ -53,7 +54,23 @@ public class RoundRobinScheduler extends Scheduler {
 			if (waitQueue.isEmpty())
 				return null;
 
-			return (KThread) waitQueue.removeFirst();
+			Iterator<KThread> i = waitQueue.iterator();
+			KThread thread = i.next();
+			i.remove();
+
+			return thread;
+		}
+
+		/**
+		 * Remove a thread from anywhere in the queue.
+		 * 
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
 		}
 
 		/**
@@ -77,6 +94,6 @@ public class RoundRobinScheduler extends Scheduler {
 				System.out.print((KThread) i.next() + " ");
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		private LinkedHashSet<KThread> waitQueue = new LinkedHashSet<KThread>();
 	}
 }
@@ -9,9 +9,17 @@ import nachos.machine.*;
  */
 public abstract class Scheduler {
 	/**
-	 * Allocate a new scheduler.
+	 * Allocate a new scheduler. The base time slice is read from
+	 * <tt>Scheduler.quantum</tt> in <tt>nachos.conf</tt> (default one timer
+	 * period). If <tt>Scheduler.adaptiveQuantum</tt> is <tt>true</tt>, the
+	 * slice of a thread that keeps using it up is doubled, up to
+	 * <tt>Scheduler.maxQuantum</tt> (default eight times the base).
 	 */
 	public Scheduler() {
+		quantum = Config.getInteger("Scheduler.quantum", Stats.TimerTicks);
+		maxQuantum = Config.getInteger("Scheduler.maxQuantum", quantum * 8);
+		adaptiveQuantum = Config.getBoolean("Scheduler.adaptiveQuantum", false);
+		Lib.assertTrue(quantum > 0 && maxQuantum >= quantum);
 	}
 
 	/**
@@ -50,6 +58,111 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads waiting to run on the processor. This is
+	 * called once, by the first <tt>KThread</tt>. Schedulers that treat the
+	 * processor differently from other resources (for example, to charge
+	 * threads for the time they ran) can return a special queue here.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Decide whether the current thread should give up the processor on a
+	 * timer interrupt. Called by <tt>Alarm.timerInterrupt()</tt> with
+	 * interrupts disabled.
+	 *
+	 * <p>
+	 * The default never preempts when no other thread is ready, and otherwise
+	 * preempts once the current thread has used its time slice. The timer
+	 * only fires every <tt>Stats.TimerTicks</tt>, so a slice counts as used if
+	 * less than half a timer period of it is left. With an adaptive quantum, a
+	 * thread that is preempted gets a longer slice next time.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean shouldPreempt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (KThread.readyQueueEmpty())
+			return false;
+
+		KThread thread = KThread.currentThread();
+		if (thread.isIdleThread())
+			return true;
+
+		long slice = getTimeSlice(thread);
+		long ran = Machine.timer().getTime() - thread.dispatchTime;
+		if (ran + Stats.TimerTicks / 2 < slice)
+			return false;
+
+		if (adaptiveQuantum && thread.quantum == 0)
+			thread.timeSlice = Math.min(slice * 2, maxQuantum);
+
+		return true;
+	}
+
+	/**
+	 * Count the decision <tt>shouldPreempt()</tt> made on a timer interrupt.
+	 * Called by <tt>Alarm.timerInterrupt()</tt>, so that the counts printed
+	 * by <tt>printStats()</tt> include schedulers that override
+	 * <tt>shouldPreempt()</tt>.
+	 *
+	 * @param preempted the value <tt>shouldPreempt()</tt> returned.
+	 */
+	final void countPreemption(boolean preempted) {
+		if (preempted)
+			preemptions++;
+		else
+			preemptionsSkipped++;
+	}
+
+	/**
+	 * Return the time slice of the specified thread: the quantum set for it
+	 * with <tt>setQuantum()</tt>, or else its adaptive slice, or else the
+	 * scheduler's base quantum.
+	 *
+	 * @param thread the thread.
+	 * @return the time slice of the thread, in ticks.
+	 */
+	public long getTimeSlice(KThread thread) {
+		if (thread.quantum > 0)
+			return thread.quantum;
+		if (thread.timeSlice > 0)
+			return thread.timeSlice;
+
+		return quantum;
+	}
+
+	/**
+	 * Give the specified thread a fixed time slice, which is not adapted.
+	 *
+	 * @param thread the thread.
+	 * @param ticks the time slice in ticks, or 0 to go back to the scheduler's
+	 * quantum.
+	 */
+	public void setQuantum(KThread thread, long ticks) {
+		Lib.assertTrue(ticks >= 0);
+
+		thread.quantum = ticks;
+	}
+
+	/**
+	 * Print any statistics this scheduler keeps. Called when the kernel
+	 * terminates, just before the machine prints its own statistics. The
+	 * default prints the number of context switches and timer preemptions.
+	 * Subclasses that print more should call <tt>super.printStats()</tt>.
+	 */
+	public void printStats() {
+		System.out.println("Scheduler: " + KThread.getNumSwitches()
+				+ " context switches, " + preemptions
+				+ " timer preemptions, " + preemptionsSkipped
+				+ " skipped");
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
@@ -151,4 +264,14 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/** The base time slice, in ticks. */
+	protected int quantum;
+
+	/** The longest time slice an adaptive thread can reach. */
+	protected int maxQuantum;
+
+	protected boolean adaptiveQuantum;
+
+	private long preemptions = 0, preemptionsSkipped = 0;
 }
@@ -48,6 +48,34 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up after <i>ticks</i> ticks.
+	 * 
+	 * @param ticks the most ticks to wait. If not positive, only decrement the
+	 * semaphore if it is already non-zero.
+	 * @return <tt>true</tt> if the semaphore was decremented, <tt>false</tt>
+	 * if the wait timed out.
+	 */
+	public boolean P(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean decremented = true;
+
+		if (value > 0) {
+			value--;
+		}
+		else if (ticks <= 0) {
+			decremented = false;
+		}
+		else {
+			waitQueue.waitForAccess(KThread.currentThread());
+			decremented = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -101,6 +129,7 @@ public class Semaphore {
 
 	private int value;
 
-	private ThreadQueue waitQueue = ThreadedKernel.scheduler
-			.newThreadQueue(false);
+	private ThreadQueue waitQueue = TracedThreadQueue.wrap(
+			ThreadedKernel.scheduler.newThreadQueue(false),
+			TracedThreadQueue.semaphoreTag);
 }
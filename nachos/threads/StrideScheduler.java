@@ -0,0 +1,411 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A stride scheduler gives each thread a share of the processor proportional
+ * to its number of tickets, deterministically rather than in expectation as a
+ * lottery scheduler does.
+ *
+ * <p>
+ * Every thread has a <i>stride</i>, inversely proportional to its tickets,
+ * and a <i>pass</i>. The ready thread with the smallest pass runs next; when
+ * it gives up the processor its pass is advanced by its stride for each tick
+ * it ran. Ready threads are kept in a binary min-heap ordered by pass.
+ *
+ * <p>
+ * The scheduler also keeps a global pass, which advances at the rate of the
+ * combined tickets of all runnable threads. When a thread blocks, the
+ * distance between its pass and the global pass is saved, and restored
+ * relative to the global pass when it wakes. A thread therefore neither
+ * gains credit while asleep nor loses its place by sleeping. Changing the
+ * tickets of a ready thread rescales its remaining distance to the new
+ * stride.
+ *
+ * <p>
+ * Only the processor is scheduled this way; other thread queues are FIFO.
+ * The largest ticket count is set by <tt>StrideScheduler.maxTickets</tt> in
+ * <tt>nachos.conf</tt>.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+		maxTickets = Config.getInteger("StrideScheduler.maxTickets",
+				defaultMaxTickets);
+		Lib.assertTrue(maxTickets >= 1 && maxTickets <= stride1);
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return waitQueues.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the pass-ordered ready queue.
+	 *
+	 * @return a new stride ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new StrideQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Return the tickets of the specified thread.
+	 *
+	 * @param thread the thread.
+	 * @return the number of tickets the thread holds.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Set the tickets of the specified thread.
+	 *
+	 * @param thread the thread.
+	 * @param tickets the new number of tickets, between 1 and
+	 * <tt>StrideScheduler.maxTickets</tt>.
+	 */
+	public void setPriority(KThread thread, int tickets) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(tickets >= 1 && tickets <= maxTickets);
+
+		getThreadState(thread).setTickets(tickets);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Advance the global pass for <i>ticks</i> ticks of processor time shared
+	 * among all runnable threads.
+	 */
+	private void advanceGlobalPass(long ticks) {
+		if (activeTickets == 0)
+			return;
+
+		globalRemainder += stride1 * ticks;
+		globalPass += globalRemainder / activeTickets;
+		globalRemainder %= activeTickets;
+	}
+
+	/**
+	 * Check that competing threads receive processor time in proportion to
+	 * their tickets. Only runs when the kernel is using a stride scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+			return;
+
+		final StrideScheduler s = (StrideScheduler) ThreadedKernel.scheduler;
+		final int[] tickets = { 100, 200, 300 };
+		final long[] ticks = new long[tickets.length];
+		final long duration = 200 * Stats.TimerTicks;
+		final long end = Machine.timer().getTime() + duration;
+
+		KThread[] threads = new KThread[tickets.length];
+		for (int i = 0; i < tickets.length; i++) {
+			final int which = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					// each iteration runs for one kernel tick
+					while (Machine.timer().getTime() < end) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+						ticks[which] += Stats.KernelTick;
+					}
+				}
+			}).setName("stride" + i);
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		for (int i = 0; i < tickets.length; i++)
+			s.setPriority(threads[i], tickets[i]);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < tickets.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < tickets.length; i++)
+			threads[i].join();
+
+		for (int i = 1; i < tickets.length; i++) {
+			double expected = (double) tickets[i] / tickets[0];
+			double actual = (double) ticks[i] / ticks[0];
+			System.out.println("StrideScheduler: tickets " + tickets[i] + ":"
+					+ tickets[0] + " got ticks " + ticks[i] + ":" + ticks[0]
+					+ " (ratio " + actual + ", expected " + expected + ")");
+			Lib.assertTrue(Math.abs(actual - expected) < expected * 0.1,
+					"stride shares not proportional to tickets");
+		}
+	}
+
+	/**
+	 * The ready queue: an indexed binary min-heap ordered by pass.
+	 */
+	private class StrideQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the ready queue. If the thread is the current
+		 * thread, it is yielding and is charged for the time it ran.
+		 * Otherwise it was blocked (or is new) and rejoins relative to the
+		 * global pass.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (state == running) {
+				charge(state);
+			}
+			else {
+				state.pass = globalPass + state.remain;
+				activeTickets += state.tickets;
+			}
+
+			state.sequence = sequenceCount++;
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the previous thread blocked or finished rather than yielding
+			if (running != null && running.heapIndex < 0) {
+				charge(running);
+				running.remain = running.pass - globalPass;
+				activeTickets -= running.tickets;
+			}
+
+			running = null;
+			if (size == 0)
+				return null;
+
+			ThreadState next = heap[0];
+			remove(next);
+			next.dispatchTime = Machine.timer().getTime();
+			running = next;
+
+			return next.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			state.pass = globalPass;
+			state.dispatchTime = Machine.timer().getTime();
+			activeTickets += state.tickets;
+			running = state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " ");
+		}
+
+		/**
+		 * Charge the running thread for the ticks since it was dispatched.
+		 */
+		private void charge(ThreadState state) {
+			long ticks = Math.max(1,
+					Machine.timer().getTime() - state.dispatchTime);
+
+			state.pass += state.stride * ticks;
+			advanceGlobalPass(ticks);
+			state.dispatchTime = Machine.timer().getTime();
+		}
+
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] larger = new ThreadState[size * 2];
+				System.arraycopy(heap, 0, larger, 0, size);
+				heap = larger;
+			}
+
+			state.heapIndex = size++;
+			siftUp(state);
+		}
+
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != state) {
+				last.heapIndex = index;
+				siftUp(last);
+				siftDown(last);
+			}
+
+			state.heapIndex = -1;
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+
+			return a.sequence < b.sequence;
+		}
+
+		private void siftUp(ThreadState state) {
+			int index = state.heapIndex;
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(ThreadState state) {
+			int index = state.heapIndex;
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private ThreadState[] heap = new ThreadState[16];
+
+		private int size = 0;
+
+		/** The thread most recently returned by <tt>nextThread()</tt>. */
+		private ThreadState running = null;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> for the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Change the tickets of the associated thread, rescaling its remaining
+		 * distance to the global pass by the ratio of the new stride to the
+		 * old.
+		 *
+		 * @param newTickets the new number of tickets.
+		 */
+		void setTickets(int newTickets) {
+			if (newTickets == tickets)
+				return;
+
+			long newStride = stride1 / newTickets;
+			boolean ready = (heapIndex >= 0);
+			boolean active = ready
+					|| (readyQueue != null && readyQueue.running == this);
+
+			if (ready) {
+				readyQueue.remove(this);
+				pass = globalPass + (pass - globalPass) * newStride / stride;
+			}
+			else if (!active) {
+				remain = remain * newStride / stride;
+			}
+
+			if (active)
+				activeTickets += newTickets - tickets;
+
+			tickets = newTickets;
+			stride = newStride;
+
+			if (ready)
+				readyQueue.add(this);
+		}
+
+		int tickets = defaultTickets;
+
+		long stride = stride1 / defaultTickets;
+
+		long pass = 0;
+
+		/** Distance from the global pass, saved while the thread is blocked. */
+		long remain = 0;
+
+		long dispatchTime = 0;
+
+		long sequence;
+
+		int heapIndex = -1;
+
+		KThread thread;
+	}
+
+	/** The stride of a thread holding one ticket. */
+	private static final long stride1 = 1 << 20;
+
+	/** The number of tickets a new thread gets. */
+	public static final int defaultTickets = 100;
+
+	private static final int defaultMaxTickets = 1 << 16;
+
+	private int maxTickets;
+
+	private StrideQueue readyQueue = null;
+
+	private RoundRobinScheduler waitQueues = new RoundRobinScheduler();
+
+	private long globalPass = 0;
+
+	private long globalRemainder = 0;
+
+	/** The combined tickets of all ready and running threads. */
+	private long activeTickets = 0;
+
+	private long sequenceCount = 0;
+}
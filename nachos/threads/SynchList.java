@@ -1,34 +1,119 @@
 package nachos.threads;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * A queue can be given a capacity, in which case <tt>put()</tt> blocks while
+ * the queue is full. Consumers are only woken when the queue goes from empty
+ * to non-empty, and producers only when it goes from full to not full. A
+ * woken thread that leaves elements (or space) behind wakes the next waiting
+ * thread, so each waiter gets one wakeup however many elements are added.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new, unbounded synchronized queue.
 	 */
 	public SynchList() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 *
+	 * @param capacity the most objects the queue can hold.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
 		list = new LinkedList<Object>();
 		lock = new Lock();
 		listEmpty = new Condition(lock);
+		listFull = new Condition(lock);
 	}
 
 	/**
 	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * waiting in <tt>removeFirst()</tt>, it is woken up. The same as
+	 * <tt>put()</tt>.
 	 * 
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
 	public void add(Object o) {
+		put(o);
+	}
+
+	/**
+	 * Add the specified object to the end of the queue, blocking while the
+	 * queue is full.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 */
+	public void put(Object o) {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
+		while (list.size() == capacity)
+			listFull.sleep();
 		list.add(o);
-		listEmpty.wake();
+		added(1);
+		lock.release();
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room.
+	 *
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean room = (list.size() < capacity);
+		if (room) {
+			list.add(o);
+			added(1);
+		}
+		lock.release();
+
+		return room;
+	}
+
+	/**
+	 * Add every object of a collection to the end of the queue, in order.
+	 * Objects are added as many at a time as there is room for, blocking while
+	 * the queue is full.
+	 *
+	 * @param c the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Collection<?> c) {
+		Iterator<?> i = c.iterator();
+
+		lock.acquire();
+		while (i.hasNext()) {
+			while (list.size() == capacity)
+				listFull.sleep();
+
+			int n = 0;
+			while (i.hasNext() && list.size() < capacity) {
+				Object o = i.next();
+				Lib.assertTrue(o != null);
+				list.add(o);
+				n++;
+			}
+			added(n);
+		}
 		lock.release();
 	}
 
@@ -45,11 +130,89 @@ public class SynchList {
 		while (list.isEmpty())
 			listEmpty.sleep();
 		o = list.removeFirst();
+		removed(1);
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, blocking for at most
+	 * <i>ticks</i> ticks until the queue is non-empty.
+	 * 
+	 * @param ticks the most ticks to wait.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was still empty when the time was up.
+	 */
+	public Object removeFirst(long ticks) {
+		long deadline = Machine.timer().getTime() + ticks;
+		Object o = null;
+
+		lock.acquire();
+		while (list.isEmpty()) {
+			long left = deadline - Machine.timer().getTime();
+			if (left <= 0)
+				break;
+			listEmpty.sleepFor(left);
+		}
+		if (!list.isEmpty()) {
+			o = list.removeFirst();
+			removed(1);
+		}
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove up to <i>max</i> objects from the front of the queue and add them
+	 * to a collection, in order, blocking until the queue is non-empty if
+	 * necessary.
+	 *
+	 * @param c the collection to add the objects to.
+	 * @param max the most objects to remove; must be positive.
+	 * @return the number of objects removed.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		Lib.assertTrue(max > 0);
+
+		lock.acquire();
+		while (list.isEmpty())
+			listEmpty.sleep();
+
+		int n = 0;
+		while (n < max && !list.isEmpty()) {
+			c.add(list.removeFirst());
+			n++;
+		}
+		removed(n);
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Wake waiting threads after <i>n</i> objects were added: a consumer if
+	 * the queue was empty, and another producer if there is still room.
+	 */
+	private void added(int n) {
+		if (list.size() == n)
+			listEmpty.wake();
+		if (list.size() < capacity)
+			listFull.wake();
+	}
+
+	/**
+	 * Wake waiting threads after <i>n</i> objects were removed: a producer if
+	 * the queue was full, and another consumer if there is still more.
+	 */
+	private void removed(int n) {
+		if (list.size() + n == capacity)
+			listFull.wake();
+		if (!list.isEmpty())
+			listEmpty.wake();
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +243,103 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		benchmark("unbounded", new SynchList(), false);
+		benchmark("bounded(16)", new SynchList(16), false);
+		benchmark("bounded(16) addAll/drainTo", new SynchList(16), true);
+	}
+
+	/**
+	 * Have 8 producers pass objects to 8 consumers, one at a time or in
+	 * batches, and check that each object arrives once. If benchmarks are
+	 * enabled, pass 4000 objects and report the simulated time and context
+	 * switches used.
+	 */
+	private static void benchmark(String name, final SynchList list,
+			final boolean bulk) {
+		final boolean report = ThreadedKernel.benchmarks();
+		final int numProducers = 8, numConsumers = 8;
+		final int perProducer = report ? 500 : 64;
+		final int batch = 8, total = numProducers * perProducer;
+		final int[] seen = new int[total];
+
+		KThread[] threads = new KThread[numProducers + numConsumers];
+
+		for (int i = 0; i < numProducers; i++) {
+			final int base = i * perProducer;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					ArrayList<Object> out = new ArrayList<Object>();
+					for (int j = 0; j < perProducer; j++) {
+						Integer o = new Integer(base + j);
+						if (!bulk) {
+							list.put(o);
+							continue;
+						}
+
+						out.add(o);
+						if (out.size() == batch || j == perProducer - 1) {
+							list.addAll(out);
+							out.clear();
+						}
+					}
+				}
+			}).setName("producer" + i);
+		}
+
+		final int share = total / numConsumers;
+		for (int i = 0; i < numConsumers; i++) {
+			threads[numProducers + i] = new KThread(new Runnable() {
+				public void run() {
+					ArrayList<Object> in = new ArrayList<Object>();
+					int got = 0;
+					while (got < share) {
+						if (bulk)
+							got += list.drainTo(in,
+									Math.min(2 * batch, share - got));
+						else {
+							in.add(list.removeFirst());
+							got++;
+						}
+
+						for (Iterator<Object> j = in.iterator(); j.hasNext();)
+							seen[((Integer) j.next()).intValue()]++;
+						in.clear();
+					}
+				}
+			}).setName("consumer" + i);
+		}
+
+		long switches = KThread.getNumSwitches();
+		long start = Machine.timer().getTime();
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long ticks = Machine.timer().getTime() - start;
+		switches = KThread.getNumSwitches() - switches;
+
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(seen[i] == 1, "object lost or duplicated");
+
+		if (!report)
+			return;
+
+		System.out.println("SynchList " + name + ": " + total + " objects, "
+				+ numProducers + " producers, " + numConsumers
+				+ " consumers in " + ticks + " ticks, " + switches
+				+ " context switches");
 	}
 
+	private int capacity;
+
 	private LinkedList<Object> list;
 
 	private Lock lock;
 
 	private Condition listEmpty;
+
+	private Condition listFull;
 }
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple threads.
@@ -75,6 +77,21 @@ public abstract class ThreadQueue {
 	 */
 	public abstract KThread nextThread();
 
+	/**
+	 * Remove a thread that is waiting for access, because it has stopped
+	 * waiting (for example, its wait timed out). The thread no longer donates
+	 * priority to the holder. Queues that support this make it cost no more
+	 * than <tt>nextThread()</tt>; the default does not support it.
+	 * 
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was waiting in this queue,
+	 * <tt>false</tt> if it had already been given access.
+	 */
+	public boolean remove(KThread thread) {
+		Lib.assertNotReached("thread queue does not support remove");
+		return false;
+	}
+
 	/**
 	 * Notify this thread queue that a thread has received access, without going
 	 * through <tt>request()</tt> and <tt>nextThread()</tt>. For example, if a
@@ -39,6 +39,18 @@ public class ThreadedKernel extends Kernel {
 		Machine.interrupt().enable();
 	}
 
+	/**
+	 * Return whether self tests should also run their benchmarks. Benchmarks
+	 * take seconds and print timings that vary from host to host, so they
+	 * only run when <tt>ThreadedKernel.benchmark</tt> is set in the
+	 * configuration file.
+	 *
+	 * @return <tt>true</tt> if benchmarks are enabled.
+	 */
+	public static boolean benchmarks() {
+		return Config.getBoolean("ThreadedKernel.benchmark", false);
+	}
+
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
 	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
@@ -50,11 +62,25 @@ public class ThreadedKernel extends Kernel {
 		Semaphore.selfTest();
 		SynchList.selfTest();
 		Alarm.selfTest();
+		Communicator.selfTest();
+		Condition.selfTest();
+		ReadWriteLock.selfTest();
 		//Condition2.selfTest();
 		Condition2.cvTest5();
 		GameMatch.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		MLFQScheduler.selfTest();
+		StrideScheduler.selfTest();
+		FairScheduler.selfTest();
+		MultiQueueScheduler.selfTest();
+		EDFScheduler.selfTest();
+		GroupScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
+			ElevatorController.selfTest();
+			if (benchmarks())
+				ElevatorBenchmark.benchmark();
 		}
 	}
 
@@ -69,6 +95,9 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		scheduler.printStats();
+		TracedThreadQueue.printStats();
+		LockProfile.printStats();
 		Machine.halt();
 	}
 
@@ -0,0 +1,250 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A thread queue that records how long threads wait in another thread queue.
+ *
+ * <p>
+ * Every call is passed on to the wrapped queue, which can come from any
+ * scheduler. The tick at which a thread enters <tt>waitForAccess()</tt> is
+ * remembered, and when <tt>nextThread()</tt> hands the thread out the
+ * difference is added to a histogram. An <tt>acquire()</tt> without waiting
+ * is counted as an immediate access.
+ *
+ * <p>
+ * Each queue has its own histogram and carries a tag (<tt>ready</tt>,
+ * <tt>lock</tt> or <tt>semaphore</tt>). The histograms of all queues with the
+ * same tag are also summed, and the queues with the longest individual
+ * waits are kept, together with the thread that waited. The summary is
+ * printed when the kernel terminates.
+ *
+ * <p>
+ * Tracing is turned on by setting <tt>ThreadQueue.trace</tt> to
+ * <tt>true</tt> in <tt>nachos.conf</tt>. When it is off, <tt>wrap()</tt>
+ * returns the queue it is given, so untraced queues pay nothing.
+ */
+public class TracedThreadQueue extends ThreadQueue {
+	/** The tag of the ready queue. */
+	public static final int readyTag = 0;
+
+	/** The tag of lock wait queues. */
+	public static final int lockTag = 1;
+
+	/** The tag of semaphore wait queues. */
+	public static final int semaphoreTag = 2;
+
+	private static final String[] tagNames = { "ready", "lock", "semaphore" };
+
+	/**
+	 * Wrap a thread queue for tracing, if tracing is enabled.
+	 *
+	 * @param queue the queue to trace.
+	 * @param tag the kind of queue, <tt>readyTag</tt>, <tt>lockTag</tt> or
+	 * <tt>semaphoreTag</tt>.
+	 * @return a traced queue, or <i>queue</i> itself if tracing is off.
+	 */
+	public static ThreadQueue wrap(ThreadQueue queue, int tag) {
+		if (!enabled())
+			return queue;
+
+		return new TracedThreadQueue(queue, tag);
+	}
+
+	/**
+	 * Return <tt>true</tt> if queue tracing is enabled.
+	 *
+	 * @return <tt>true</tt> if <tt>ThreadQueue.trace</tt> is set.
+	 */
+	public static boolean enabled() {
+		if (enabled == null)
+			enabled = Boolean.valueOf(Config.getBoolean("ThreadQueue.trace",
+					false));
+
+		return enabled.booleanValue();
+	}
+
+	private TracedThreadQueue(ThreadQueue queue, int tag) {
+		this.queue = queue;
+		this.tag = tag;
+		this.id = queueCount[tag]++;
+	}
+
+	public void waitForAccess(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		enqueued.put(thread, Long.valueOf(Machine.timer().getTime()));
+		queue.waitForAccess(thread);
+	}
+
+	public KThread nextThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = queue.nextThread();
+		if (thread != null) {
+			Long since = enqueued.remove(thread);
+			if (since != null)
+				record(thread, Machine.timer().getTime() - since.longValue());
+		}
+
+		return thread;
+	}
+
+	public boolean remove(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		enqueued.remove(thread);
+		return queue.remove(thread);
+	}
+
+	public void acquire(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		immediate++;
+		tagImmediate[tag]++;
+		queue.acquire(thread);
+	}
+
+	public void print() {
+		queue.print();
+	}
+
+	public String toString() {
+		return tagNames[tag] + "#" + id;
+	}
+
+	/**
+	 * Add a wait to the histograms, and to the worst offenders if it is the
+	 * longest wait seen on this queue.
+	 */
+	private void record(KThread thread, long ticks) {
+		histogram.add(ticks);
+		tagHistograms[tag].add(ticks);
+
+		if (ticks <= maxWait && maxWaiter != null)
+			return;
+
+		maxWait = ticks;
+		maxWaiter = thread.toString();
+
+		// worst[] holds distinct queues, longest wait first
+		int i = 0;
+		while (i < worst.length && worst[i] != null && worst[i] != this)
+			i++;
+		if (i == worst.length)
+			i--;
+		else if (worst[i] == this)
+			worst[i] = null;
+
+		while (i > 0 && (worst[i - 1] == null || worst[i - 1].maxWait < ticks)) {
+			worst[i] = worst[i - 1];
+			i--;
+		}
+
+		if (worst[i] == null || worst[i].maxWait < ticks)
+			worst[i] = this;
+	}
+
+	/**
+	 * Print the per-tag histograms and the worst waits. Does nothing if
+	 * tracing is off.
+	 */
+	public static void printStats() {
+		if (!enabled())
+			return;
+
+		for (int tag = 0; tag < tagNames.length; tag++) {
+			System.out.println("Queue latency [" + tagNames[tag] + "]: "
+					+ queueCount[tag] + " queues, " + tagImmediate[tag]
+					+ " immediate, " + tagHistograms[tag]);
+		}
+
+		for (int i = 0; i < worst.length && worst[i] != null; i++) {
+			TracedThreadQueue q = worst[i];
+			System.out.println("Worst queue " + (i + 1) + ": " + q
+					+ ", longest wait " + q.maxWait + " ticks by "
+					+ q.maxWaiter + "; " + q.immediate + " immediate, "
+					+ q.histogram);
+		}
+	}
+
+	/**
+	 * A histogram of waits in power-of-two buckets: bucket 0 holds waits of
+	 * 0 ticks and bucket <i>i</i> waits of 2<sup>i-1</sup> to
+	 * 2<sup>i</sup>-1 ticks.
+	 */
+	private static class Histogram {
+		void add(long ticks) {
+			int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+			buckets[bucket]++;
+			count++;
+			total += ticks;
+		}
+
+		/**
+		 * Return an upper bound on the wait below which the given fraction
+		 * of samples falls.
+		 */
+		long percentile(double fraction) {
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank)
+					return (i == 0) ? 0 : (1L << i) - 1;
+			}
+
+			return Long.MAX_VALUE;
+		}
+
+		public String toString() {
+			if (count == 0)
+				return "no waits";
+
+			StringBuffer buf = new StringBuffer();
+			buf.append(count + " waits, avg " + total / count + ", p50 <= "
+					+ percentile(0.5) + ", p99 <= " + percentile(0.99)
+					+ " ticks; buckets");
+
+			for (int i = 0; i < buckets.length; i++) {
+				if (buckets[i] != 0)
+					buf.append(" <" + (1L << i) + ":" + buckets[i]);
+			}
+
+			return buf.toString();
+		}
+
+		long[] buckets = new long[65];
+
+		long count = 0, total = 0;
+	}
+
+	private ThreadQueue queue;
+
+	private int tag, id;
+
+	/** Threads in the queue and the tick they were added. */
+	private IdentityHashMap<KThread, Long> enqueued = new IdentityHashMap<KThread, Long>();
+
+	private Histogram histogram = new Histogram();
+
+	private long immediate = 0;
+
+	private long maxWait = 0;
+
+	private String maxWaiter = null;
+
+	private static Boolean enabled = null;
+
+	private static int[] queueCount = new int[tagNames.length];
+
+	private static long[] tagImmediate = new long[tagNames.length];
+
+	private static Histogram[] tagHistograms = { new Histogram(),
+			new Histogram(), new Histogram() };
+
+	private static TracedThreadQueue[] worst = new TracedThreadQueue[10];
+}
@@ -0,0 +1,125 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A FIFO thread queue that links waiting threads through fields of
+ * <tt>KThread</tt> instead of allocating a node for each wait. A thread can
+ * be in only one wait list at a time. It is used by the condition variables.
+ *
+ * <p>
+ * Threads are handed out in the order they started waiting, whatever the
+ * scheduler; priorities only come into play when a woken thread competes for
+ * the lock again.
+ */
+class WaitList extends ThreadQueue {
+	/**
+	 * Add a thread to the end of this list.
+	 *
+	 * @param thread the thread that is now waiting.
+	 */
+	public void waitForAccess(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(thread.waitList == null);
+
+		thread.waitList = this;
+		thread.waitPrev = tail;
+		thread.waitNext = null;
+
+		if (tail == null)
+			head = thread;
+		else
+			tail.waitNext = thread;
+		tail = thread;
+	}
+
+	/**
+	 * Remove the thread that has waited longest.
+	 *
+	 * @return the thread, or <tt>null</tt> if the list is empty.
+	 */
+	public KThread nextThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = head;
+		if (thread != null)
+			unlink(thread);
+
+		return thread;
+	}
+
+	/**
+	 * Remove a waiting thread from this list.
+	 *
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was in this list.
+	 */
+	public boolean remove(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (thread.waitList != this)
+			return false;
+
+		unlink(thread);
+		return true;
+	}
+
+	/**
+	 * A wait list has no holder, so there is nothing to record.
+	 */
+	public void acquire(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(head == null);
+	}
+
+	/**
+	 * Move every waiting thread to the ready queue, in order.
+	 */
+	public void readyAll() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		KThread thread = head;
+		head = tail = null;
+
+		while (thread != null) {
+			KThread next = thread.waitNext;
+			thread.waitList = null;
+			thread.waitPrev = thread.waitNext = null;
+			thread.ready();
+			thread = next;
+		}
+	}
+
+	/**
+	 * Test if any thread is waiting.
+	 *
+	 * @return <tt>true</tt> if no thread is waiting.
+	 */
+	public boolean isEmpty() {
+		return head == null;
+	}
+
+	public void print() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		for (KThread thread = head; thread != null; thread = thread.waitNext)
+			System.out.print(thread + " ");
+	}
+
+	private void unlink(KThread thread) {
+		if (thread.waitPrev == null)
+			head = thread.waitNext;
+		else
+			thread.waitPrev.waitNext = thread.waitNext;
+
+		if (thread.waitNext == null)
+			tail = thread.waitPrev;
+		else
+			thread.waitNext.waitPrev = thread.waitPrev;
+
+		thread.waitList = null;
+		thread.waitPrev = thread.waitNext = null;
+	}
+
+	private KThread head = null, tail = null;
+}
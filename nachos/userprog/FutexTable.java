@@ -0,0 +1,189 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The wait queues behind the <tt>futexWait()</tt> and <tt>futexWake()</tt>
+ * syscalls. A user-level lock keeps its state in a word of user memory and
+ * only traps into the kernel to sleep when the lock is contended, or to wake
+ * a sleeper when one may be waiting; taking and releasing a free lock never
+ * enters the kernel.
+ *
+ * <p>
+ * Queues are keyed by the address space and the virtual address of the word,
+ * not by its physical address. A page holding a futex word may be evicted
+ * while threads sleep on it and come back at another physical address; the
+ * virtual address does not change, so a later wake still finds the sleepers.
+ * Processes share no memory, so the process is the address space. A queue
+ * exists only while threads are waiting on it, so an idle futex costs the
+ * kernel nothing.
+ */
+public class FutexTable {
+	/**
+	 * Allocate a new, empty futex table.
+	 */
+	public FutexTable() {
+	}
+
+	/**
+	 * If the word at virtual address <i>vaddr</i> in <i>space</i> still
+	 * holds <i>expected</i>, sleep until another thread calls
+	 * <tt>wake()</tt> on the same word. Interrupts must be disabled, so that
+	 * no wakeup can come between the check and the sleep, and <i>paddr</i>
+	 * must be the word-aligned physical address that <i>vaddr</i> maps to at
+	 * the time of the call.
+	 *
+	 * @param space the address space of the word.
+	 * @param vaddr the virtual address of the futex word.
+	 * @param paddr the current physical address of the futex word.
+	 * @param expected the value the caller last saw in the word.
+	 * @return <tt>true</tt> if the thread slept and was woken, or
+	 * <tt>false</tt> if the word no longer held <i>expected</i>.
+	 */
+	public boolean wait(Object space, int vaddr, int paddr, int expected) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		byte[] memory = Machine.processor().getMemory();
+		Lib.assertTrue(paddr >= 0 && paddr + 4 <= memory.length
+				&& paddr % 4 == 0);
+
+		if (Lib.bytesToInt(memory, paddr) != expected)
+			return false;
+
+		Key key = new Key(space, vaddr);
+		Futex futex = futexes.get(key);
+		if (futex == null) {
+			futex = new Futex();
+			futexes.put(key, futex);
+		}
+
+		futex.waiting++;
+		futex.queue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		return true;
+	}
+
+	/**
+	 * Wake up to <i>count</i> threads waiting on the word at virtual address
+	 * <i>vaddr</i> in <i>space</i>. Interrupts must be disabled. The page
+	 * holding the word need not be in memory.
+	 *
+	 * @param space the address space of the word.
+	 * @param vaddr the virtual address of the futex word.
+	 * @param count the most threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public int wake(Object space, int vaddr, int count) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Key key = new Key(space, vaddr);
+		Futex futex = futexes.get(key);
+		if (futex == null)
+			return 0;
+
+		int woken = 0;
+		KThread thread;
+		while (woken < count && (thread = futex.queue.nextThread()) != null) {
+			thread.ready();
+			woken++;
+		}
+
+		futex.waiting -= woken;
+		if (futex.waiting == 0)
+			futexes.remove(key);
+
+		return woken;
+	}
+
+	/**
+	 * Test if this module is working. Kernel threads sleep on a word in
+	 * physical memory, since user processes have one thread each and cannot
+	 * contend for a futex among themselves.
+	 */
+	public static void selfTest() {
+		final FutexTable table = new FutexTable();
+		final Object space = new Object();
+		final int vaddr = 0x100;
+
+		byte[] memory = Machine.processor().getMemory();
+		final int paddr = memory.length - 4;
+		byte[] saved = new byte[4];
+		System.arraycopy(memory, paddr, saved, 0, 4);
+		Lib.bytesFromInt(memory, paddr, 5);
+
+		boolean intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(!table.wait(space, vaddr, paddr, 6));
+		Lib.assertTrue(table.wake(space, vaddr, 1) == 0);
+		Machine.interrupt().restore(intStatus);
+
+		final int numWaiters = 3;
+		final int[] sleeping = new int[1];
+		final boolean[] woken = new boolean[numWaiters];
+		KThread[] waiters = new KThread[numWaiters];
+		for (int i = 0; i < numWaiters; i++) {
+			final int id = i;
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					boolean intStatus = Machine.interrupt().disable();
+					sleeping[0]++;
+					woken[id] = table.wait(space, vaddr, paddr, 5);
+					Machine.interrupt().restore(intStatus);
+				}
+			}).setName("futex waiter " + i);
+			waiters[i].fork();
+		}
+
+		while (sleeping[0] < numWaiters)
+			KThread.yield();
+
+		intStatus = Machine.interrupt().disable();
+		// the same virtual address in another space is another futex
+		Lib.assertTrue(table.wake(new Object(), vaddr, numWaiters) == 0);
+		Lib.assertTrue(table.wake(space, vaddr, 2) == 2);
+		Lib.assertTrue(table.wake(space, vaddr, numWaiters) == 1);
+		Lib.assertTrue(table.futexes.isEmpty());
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < numWaiters; i++) {
+			waiters[i].join();
+			Lib.assertTrue(woken[i]);
+		}
+
+		System.arraycopy(saved, 0, memory, paddr, 4);
+	}
+
+	private static class Key {
+		Key(Object space, int vaddr) {
+			this.space = space;
+			this.vaddr = vaddr;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key key = (Key) o;
+			return key.space == space && key.vaddr == vaddr;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(space) * 31 + vaddr;
+		}
+
+		Object space;
+
+		int vaddr;
+	}
+
+	private static class Futex {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		int waiting = 0;
+	}
+
+	private HashMap<Key, Futex> futexes = new HashMap<Key, Futex>();
+}
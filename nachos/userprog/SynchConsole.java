@@ -104,9 +104,9 @@ public class SynchConsole {
 
 	private SerialConsole console;
 
-	private Lock readLock = new Lock();
+	private Lock readLock = new Lock("SynchConsole.readLock");
 
-	private Lock writeLock = new Lock();
+	private Lock writeLock = new Lock("SynchConsole.writeLock");
 
 	private Semaphore readWait = new Semaphore(0);
 
@@ -26,12 +26,14 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
-		PIDLock = new Lock();
-		numProcess = new Lock();
-		processLock = new Lock();
+		PIDLock = new Lock("UserKernel.PIDLock");
+		numProcess = new Lock("UserKernel.numProcess");
+		processLock = new Lock("UserKernel.processLock");
 
 		//initialize lock and condition variable
-		lock = new Lock();
+		lock = new Lock("UserKernel.lock");
+
+		futexes = new FutexTable();
 
 		//Construct free page list
 		freePages = new LinkedList<>();
@@ -47,7 +49,7 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Test the console device.
+	 * Test the console device and the futex table.
 	 */
 	public void selfTest() {
 		//super.selfTest();
@@ -63,6 +65,8 @@ public class UserKernel extends ThreadedKernel {
 //		} while (c != 'q');
 
 		System.out.println("");
+
+		FutexTable.selfTest();
 	}
 
 	/**
@@ -169,6 +173,9 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The wait queues of all futexes that threads are sleeping on. */
+	public static FutexTable futexes;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
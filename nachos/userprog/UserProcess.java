@@ -83,11 +83,33 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
-		new UThread(this).setName(name).fork();
+		UThread thread = new UThread(this);
+		setSchedulingGroup(thread);
+		thread.setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Put a thread of this process in the process's scheduling group, if the
+	 * kernel uses a <tt>GroupScheduler</tt>. A process that did not inherit a
+	 * group starts a new one.
+	 *
+	 * @param thread the thread.
+	 */
+	protected void setSchedulingGroup(KThread thread) {
+		if (!(ThreadedKernel.scheduler instanceof GroupScheduler))
+			return;
+
+		GroupScheduler scheduler = (GroupScheduler) ThreadedKernel.scheduler;
+		if (group == null)
+			group = scheduler.newGroup("pid" + PID);
+
+		boolean intStatus = Machine.interrupt().disable();
+		scheduler.setGroup(thread, group);
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -543,6 +565,10 @@ public class UserProcess {
 	        args[i] = arg;
         }
         UserProcess child = newUserProcess();
+        // children of the root process start their own group; everything
+        // they exec shares it
+        if (this.PID != 0)
+            child.group = group;
 	    boolean res = child.execute(fileName, args);
 	    if (res == false) {
 	        return -1;
@@ -730,11 +756,74 @@ public class UserProcess {
         return 0;
     }
 
+	/**
+	 * Handle the futexWait() system call. If the word at <i>vaddr</i> still
+	 * holds <i>expected</i>, sleep until a futexWake() on the same word.
+	 * Returns -1 if the word held another value, or if the address is not a
+	 * word-aligned address in this process; the caller should read the word
+	 * again and retry.
+	 */
+	private int handleFutexWait(int vaddr, int expected) {
+		if (!isFutexAddress(vaddr))
+			return -1;
+
+		// bring the page in, so that it has a physical address
+		byte[] word = new byte[4];
+		if (readVirtualMemory(vaddr, word) != word.length)
+			return -1;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int paddr = physicalAddress(vaddr);
+		boolean woken = (paddr >= 0)
+				&& UserKernel.futexes.wait(this, vaddr, paddr, expected);
+
+		Machine.interrupt().restore(intStatus);
+		return woken ? 0 : -1;
+	}
+
+	/**
+	 * Handle the futexWake() system call. Wake up to <i>count</i> threads
+	 * waiting on the word at <i>vaddr</i>, and return the number woken, or -1
+	 * if the address is not a word-aligned address in this process.
+	 */
+	private int handleFutexWake(int vaddr, int count) {
+		if (!isFutexAddress(vaddr) || count < 0)
+			return -1;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int woken = UserKernel.futexes.wake(this, vaddr, count);
+
+		Machine.interrupt().restore(intStatus);
+		return woken;
+	}
+
+	private boolean isFutexAddress(int vaddr) {
+		return vaddr >= 0 && vaddr < numPages * pageSize && vaddr % 4 == 0;
+	}
+
+	/**
+	 * Return the physical address that <i>vaddr</i> maps to, or -1 if the
+	 * address is not in this process or its page is not in memory.
+	 *
+	 * @param vaddr the virtual address to translate.
+	 * @return the physical address, or -1.
+	 */
+	protected int physicalAddress(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vpn >= numPages || !pageTable[vpn].valid)
+			return -1;
+
+		return pageTable[vpn].ppn * pageSize
+				+ Processor.offsetFromAddress(vaddr);
+	}
+
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallFutexWait = 13, syscallFutexWake = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -788,6 +877,14 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  futexWait(int *addr, int expected);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  futexWake(int *addr, int count);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -819,6 +916,10 @@ public class UserProcess {
                 return handleRead(a0, a1, a2);
             case syscallWrite:
                 return handleWrite(a0, a1, a2);
+            case syscallFutexWait:
+                return handleFutexWait(a0, a1);
+            case syscallFutexWake:
+                return handleFutexWake(a0, a1);
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
                 Lib.assertNotReached("Unknown system call!");
@@ -896,5 +997,8 @@ public class UserProcess {
 
 	public UserProcess parent = null;
 
+	/** The scheduling group, if the kernel uses a group scheduler. */
+	protected GroupScheduler.Group group = null;
+
     private boolean normalExit = true;
 }
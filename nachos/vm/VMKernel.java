@@ -62,17 +62,17 @@ public class VMKernel extends UserKernel {
 		swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
 		maxSPN = 0;
 		freeSwapPages = new LinkedList<>();
-        swapLock = new Lock();
+        swapLock = new Lock("VMKernel.swapLock");
 		invertedPageTable = new IPTEntry[Machine.processor().getNumPhysPages()];
 		for(int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
 		    invertedPageTable[i] = new IPTEntry();
         }
-		IPTLock = new Lock();
-		pinLock = new Lock();
+		IPTLock = new ReadWriteLock("VMKernel.IPTLock", true);
+		pinLock = new Lock("VMKernel.pinLock");
 		//clockLock = new Lock();
         //getPageLock = new Lock();
-        procLock = new Lock();
-        VMLock = new Lock();
+        procLock = new ReadWriteLock("VMKernel.procLock", true);
+        VMLock = new Lock("VMKernel.VMLock");
         //vmProcLock = new Lock();
         pinCond = new Condition(pinLock);
 
@@ -123,24 +123,24 @@ public class VMKernel extends UserKernel {
 
 	//handle processes
 	public static void addProcess(int pid, VMProcess proc) {
-	    procLock.acquire();
+	    procLock.acquireWrite();
 		processes.put(pid, proc);
-		procLock.release();
+		procLock.releaseWrite();
 	}
 
 	public static void rmvProcess(int pid) {
-	    procLock.acquire();
+	    procLock.acquireWrite();
 	    processes.remove(pid);
-	    procLock.release();
+	    procLock.releaseWrite();
     }
 
 	public static VMProcess getProcess(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireRead();
 	    int pid = invertedPageTable[ppn].pid;
-	    IPTLock.release();
-	    procLock.acquire();
+	    IPTLock.releaseRead();
+	    procLock.acquireRead();
 	    VMProcess vp = processes.get(pid);
-	    procLock.release();
+	    procLock.releaseRead();
 		return vp;
 	}
 
@@ -150,36 +150,36 @@ public class VMKernel extends UserKernel {
 
     //Handle IPT
     public static boolean isUsed(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireRead();
 	    boolean status =  invertedPageTable[ppn].used;
-	    IPTLock.release();
+	    IPTLock.releaseRead();
 	    return status;
     }
 
     public static boolean isPinned(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireRead();
 	    boolean isPn = invertedPageTable[ppn].ispinned;
-	    IPTLock.release();
+	    IPTLock.releaseRead();
 	    return isPn;
     }
 
     public static int ppn2vpn(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireRead();
 	    int vpn =  invertedPageTable[ppn].vpn;
-	    IPTLock.release();
+	    IPTLock.releaseRead();
 	    return vpn;
     }
 
     public static void updateVPNIPT(int ppn, int vpn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireWrite();
 	    invertedPageTable[ppn].vpn = vpn;
-	    IPTLock.release();
+	    IPTLock.releaseWrite();
     }
 
     public static void updatePIDIPT(int ppn, int pid) {
-	    IPTLock.acquire();
+	    IPTLock.acquireWrite();
 	    invertedPageTable[ppn].pid = pid;
-	    IPTLock.release();
+	    IPTLock.releaseWrite();
     }
 
     public static void pinPage(int ppn) {
@@ -200,15 +200,15 @@ public class VMKernel extends UserKernel {
     }
 
     public static void setIPTUsed(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireWrite();
 	    invertedPageTable[ppn].used = true;
-	    IPTLock.release();
+	    IPTLock.releaseWrite();
     }
 
     public static void resetIPTUsed(int ppn) {
-	    IPTLock.acquire();
+	    IPTLock.acquireWrite();
 	    invertedPageTable[ppn].used = false;
-	    IPTLock.release();
+	    IPTLock.releaseWrite();
     }
 
 	//TODO ClockAlgorithm
@@ -352,7 +352,7 @@ public class VMKernel extends UserKernel {
 
 	private static IPTEntry[] invertedPageTable;
 
-	private static Lock IPTLock;
+	private static ReadWriteLock IPTLock;
 
 	public static Lock pinLock;
 
@@ -360,7 +360,7 @@ public class VMKernel extends UserKernel {
 
 	//public static Lock getPageLock;
 
-	private static Lock procLock;
+	private static ReadWriteLock procLock;
 
 	public static Lock VMLock;
 